@@ -0,0 +1,65 @@
+package com.dailymotion.pixelle.common.logging;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.turbo.TurboFilter;
+import ch.qos.logback.core.spi.FilterReply;
+import com.netflix.config.DynamicDoubleProperty;
+import com.netflix.config.DynamicPropertyFactory;
+import org.slf4j.Marker;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static com.netflix.config.DynamicPropertyFactory.getInstance;
+import static java.lang.Boolean.TRUE;
+
+/**
+ * Keeps only a fraction of the info and lower events of a logger, before the message is formatted. The rate is read
+ * from log.sample.rate.&lt;logger name&gt;, falling back to log.sample.rate (1 keeps everything). Warnings and errors
+ * are never sampled.
+ */
+public class SamplingTurboFilter extends TurboFilter {
+    private static final String RATE_PROPERTY = "log.sample.rate";
+    private final ConcurrentMap<String, DynamicDoubleProperty> rates = new ConcurrentHashMap<>();
+    // archaius may log while it initializes, those events are let through
+    private final ThreadLocal<Boolean> resolving = new ThreadLocal<>();
+    private volatile DynamicDoubleProperty defaultRate;
+
+    @Override
+    public FilterReply decide(Marker marker, Logger logger, Level level, String format, Object[] params,
+                              Throwable t) {
+        if (level == null || level.isGreaterOrEqual(Level.WARN)
+                || !level.isGreaterOrEqual(logger.getEffectiveLevel()) || resolving.get() != null
+                // isXxxEnabled() checks, the event itself gets sampled
+                || format == null) {
+            return FilterReply.NEUTRAL;
+        }
+        DynamicDoubleProperty loggerRate = rates.get(logger.getName());
+        if (loggerRate == null) {
+            // do not initialize archaius from here, before the application had a chance to configure it
+            if (DynamicPropertyFactory.getBackingConfigurationSource() == null) {
+                return FilterReply.NEUTRAL;
+            }
+            resolving.set(TRUE);
+            try {
+                if (defaultRate == null) {
+                    defaultRate = getInstance().getDoubleProperty(RATE_PROPERTY, 1.0);
+                }
+                loggerRate = getInstance().getDoubleProperty(RATE_PROPERTY + "." + logger.getName(), -1);
+                rates.putIfAbsent(logger.getName(), loggerRate);
+            } finally {
+                resolving.remove();
+            }
+        }
+        double rate = loggerRate.get();
+        if (rate < 0) {
+            rate = defaultRate.get();
+        }
+        if (rate >= 1 || ThreadLocalRandom.current().nextDouble() < rate) {
+            return FilterReply.NEUTRAL;
+        }
+        return FilterReply.DENY;
+    }
+}
@@ -3,6 +3,7 @@ package com.dailymotion.pixelle.common.server; /**
  */
 
 import com.dailymotion.pixelle.de.model.AdUnit;
+import com.dailymotion.pixelle.de.model.EngagementEvent;
 import com.dailymotion.pixelle.de.model.ItemsResponse;
 import com.dailymotion.pixelle.de.model.SearchQueryRequest;
 import com.dailymotion.pixelle.de.model.Video;
@@ -46,6 +47,7 @@ import static com.dailymotion.pixelle.de.processor.DeHelper.promotedIndex;
 import static com.dailymotion.pixelle.de.processor.DeHelper.videosType;
 import static javax.ws.rs.core.MediaType.APPLICATION_JSON;
 import static javax.ws.rs.core.MediaType.TEXT_PLAIN;
+import static javax.ws.rs.core.Response.accepted;
 import static javax.ws.rs.core.Response.noContent;
 import static javax.ws.rs.core.Response.ok;
 import static org.apache.commons.lang.StringUtils.isBlank;
@@ -290,6 +292,21 @@ public class AppServlet {
         }
     }
 
+    /**
+     * Records clicks, views and impressions of ad units and videos. They are written to the indices in batches.
+     *
+     * @param events
+     * @return response with status code 202
+     * @throws DeException
+     */
+    @POST
+    @Path("/events")
+    @Consumes(APPLICATION_JSON)
+    public Response events(List<EngagementEvent> events) throws DeException {
+        DEProcessor.recordEngagement(events);
+        return accepted().build();
+    }
+
     /**
      * Forecast daily and total views based on given data.
      *
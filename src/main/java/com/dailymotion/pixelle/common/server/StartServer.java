@@ -3,8 +3,12 @@ package com.dailymotion.pixelle.common.server; /**
  */
 
 import com.dailymotion.pixelle.common.exceptionmapper.JSONParseExceptionMapper;
+import com.dailymotion.pixelle.common.services.CacheWarmer;
 import com.dailymotion.pixelle.de.processor.DeExceptionMapper;
+import com.dailymotion.pixelle.de.processor.EngagementCounters;
+import com.dailymotion.pixelle.de.processor.VideoFallbackPool;
 import com.google.inject.servlet.GuiceFilter;
+import com.netflix.config.DynamicBooleanProperty;
 import com.netflix.config.DynamicPropertyFactory;
 import com.netflix.config.DynamicStringProperty;
 import com.netflix.hystrix.contrib.servopublisher.HystrixServoMetricsPublisher;
@@ -17,6 +21,7 @@ import org.eclipse.jetty.server.HttpConnectionFactory;
 import org.eclipse.jetty.server.LowResourceMonitor;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.Slf4jRequestLog;
 import org.eclipse.jetty.server.handler.StatisticsHandler;
 import org.eclipse.jetty.servlet.DefaultServlet;
 import org.eclipse.jetty.servlet.FilterHolder;
@@ -40,7 +45,11 @@ import static com.dailymotion.pixelle.common.services.CacheService.getCountryEve
 import static com.dailymotion.pixelle.common.services.CacheService.getCountryFormatCountCache;
 import static com.dailymotion.pixelle.common.services.CacheService.getCountryLangCountCache;
 import static com.dailymotion.pixelle.common.services.CacheService.getGroupVideosCache;
+import static com.dailymotion.pixelle.common.services.CacheService.getGroupVideosCacheBytes;
+import static com.dailymotion.pixelle.common.services.CacheService.getGroupVideosOffHeapBytes;
 import static com.dailymotion.pixelle.common.services.CacheService.getOrganicVideosCache;
+import static com.dailymotion.pixelle.common.services.CacheService.getOrganicVideosCacheBytes;
+import static com.dailymotion.pixelle.common.services.CacheService.getOrganicVideosOffHeapBytes;
 import static com.dailymotion.pixelle.common.services.CacheService.getPerCountryCountCache;
 import static com.dailymotion.pixelle.de.processor.DeHelper.dePort;
 import static com.netflix.config.ConfigurationManager.loadCascadedPropertiesFromResources;
@@ -74,6 +83,11 @@ final class StartServer {
     private static final LongGauge channelCacheEvictionCount = new LongGauge(builder("channelCacheEvictionCount_gauge").build());
     private static final LongGauge countryCountCacheEvictionCount = new LongGauge(builder("countryCountCacheEvictionCount_gauge").build());
 
+    private static final LongGauge videoCacheBytes = new LongGauge(builder("videoCacheBytes_gauge").build());
+    private static final LongGauge channelCacheBytes = new LongGauge(builder("channelCacheBytes_gauge").build());
+    private static final LongGauge videoCacheOffHeapBytes = new LongGauge(builder("videoCacheOffHeapBytes_gauge").build());
+    private static final LongGauge channelCacheOffHeapBytes = new LongGauge(builder("channelCacheOffHeapBytes_gauge").build());
+
 
     private static Logger logger = getLogger(StartServer.class);
 
@@ -87,6 +101,10 @@ final class StartServer {
         getInstance().register(countryCountCacheEvictionCount);
         getInstance().register(countryCountCacheLoadExceptionRate);
         getInstance().register(countryCountCacheHitRate);
+        getInstance().register(videoCacheBytes);
+        getInstance().register(channelCacheBytes);
+        getInstance().register(videoCacheOffHeapBytes);
+        getInstance().register(channelCacheOffHeapBytes);
     }
 
     private StartServer() {
@@ -104,6 +122,9 @@ final class StartServer {
         final DynamicStringProperty appName =
                 DynamicPropertyFactory.getInstance().getStringProperty("appname", "de");
 
+        final DynamicBooleanProperty accessLogEnabled =
+                DynamicPropertyFactory.getInstance().getBooleanProperty("accesslog.enabled", false);
+
         logger.info("Application: " + appName.get());
 
         if (appName.get().equalsIgnoreCase("forecast")) {
@@ -120,6 +141,12 @@ final class StartServer {
         newInjector(locator, asList(new AppServletModule()));
         install(locator);
 
+        if (!appName.get().equalsIgnoreCase("forecast")) {
+            // before the server accepts requests
+            CacheWarmer.warmUp();
+            CacheWarmer.start();
+        }
+
         ResourceConfig config = new ResourceConfig();
         config.register(JacksonFeature.class);
         config.register(MultiPartFeature.class);
@@ -130,7 +157,7 @@ final class StartServer {
         ScheduledExecutorService scheduledExecutorService = newSingleThreadScheduledExecutor();
 
 
-        scheduledExecutorService.schedule(() -> {
+        scheduledExecutorService.scheduleWithFixedDelay(() -> {
             channelCacheHitRate.set(getGroupVideosCache().stats().hitRate());
             videoCacheHitRate.set(getOrganicVideosCache().stats().hitRate());
             countryCountCacheHitRate.set(getPerCountryCountCache().stats().hitRate());
@@ -143,7 +170,11 @@ final class StartServer {
             channelCacheEvictionCount.set(getGroupVideosCache().stats().evictionCount());
             countryCountCacheEvictionCount.set(getPerCountryCountCache().stats().evictionCount());
 
-        }, 30, SECONDS);
+            videoCacheBytes.set(getOrganicVideosCacheBytes());
+            channelCacheBytes.set(getGroupVideosCacheBytes());
+            videoCacheOffHeapBytes.set(getOrganicVideosOffHeapBytes());
+            channelCacheOffHeapBytes.set(getGroupVideosOffHeapBytes());
+        }, 30, 30, SECONDS);
 
         ServletContainer servletContainer = new ServletContainer(config);
         ServletHolder sh = new ServletHolder(servletContainer);
@@ -195,6 +226,16 @@ final class StartServer {
         stats.setHandler(server.getHandler());
         server.setHandler(stats);
 
+        // async through logback, with the request latency
+        if (accessLogEnabled.get()) {
+            Slf4jRequestLog requestLog = new Slf4jRequestLog();
+            requestLog.setLoggerName("access");
+            requestLog.setLogLatency(true);
+            requestLog.setExtended(false);
+            requestLog.setLogTimeZone("GMT");
+            server.setRequestLog(requestLog);
+        }
+
 /*  Enable if request logging is required
 
         // === jetty-requestlog.xml ===
@@ -229,6 +270,9 @@ final class StartServer {
                     logger.info("Server shutting down...");
                     scheduledExecutorService.shutdownNow();
                     server.stop();
+                    EngagementCounters.stop();
+                    VideoFallbackPool.stop();
+                    CacheWarmer.stop();
                 } catch (Exception e) {
                     logger.error("Can not stop the Jetty server", e);
                 }
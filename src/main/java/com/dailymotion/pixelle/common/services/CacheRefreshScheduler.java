@@ -0,0 +1,222 @@
+package com.dailymotion.pixelle.common.services;
+
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.netflix.config.DynamicDoubleProperty;
+import com.netflix.config.DynamicIntProperty;
+import com.netflix.servo.DefaultMonitorRegistry;
+import com.netflix.servo.monitor.BasicCounter;
+import com.netflix.servo.monitor.Counter;
+import org.slf4j.Logger;
+
+import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+import static com.google.common.util.concurrent.Futures.immediateFuture;
+import static com.netflix.config.DynamicPropertyFactory.getInstance;
+import static com.netflix.servo.monitor.MonitorConfig.builder;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.unmodifiableList;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Runs the background refreshes of all the CacheService caches on one bounded pool. Queued refreshes of the most
+ * requested keys run first, and refreshes beyond the queue budget are skipped, the old value being kept. Keys hit
+ * often enough are refreshed ahead of their refresh time, the others are only refreshed on access and expire once
+ * they are no longer requested.
+ */
+public final class CacheRefreshScheduler {
+    private static final Logger logger = getLogger(CacheRefreshScheduler.class);
+    private static final DynamicIntProperty refreshThreads =
+            getInstance().getIntProperty("pixelle.cache.refresh.threads", 4);
+    private static final DynamicIntProperty maxQueued =
+            getInstance().getIntProperty("pixelle.cache.refresh.queue.max", 100);
+    private static final DynamicIntProperty hotHits =
+            getInstance().getIntProperty("pixelle.cache.refresh.hot.hits", 5);
+    private static final DynamicIntProperty maxHotKeys =
+            getInstance().getIntProperty("pixelle.cache.refresh.hot.keys", 100);
+    private static final DynamicDoubleProperty aheadRatio =
+            getInstance().getDoubleProperty("pixelle.cache.refresh.ahead.ratio", 0.75);
+    // JMX: com.netflix.servo.COUNTER.CacheRefreshes
+    private static final Counter refreshes = new BasicCounter(builder("CacheRefreshes").build());
+    // JMX: com.netflix.servo.COUNTER.CacheRefreshesSkipped
+    private static final Counter refreshesSkipped = new BasicCounter(builder("CacheRefreshesSkipped").build());
+    // JMX: com.netflix.servo.COUNTER.CacheRefreshesAhead
+    private static final Counter refreshesAhead = new BasicCounter(builder("CacheRefreshesAhead").build());
+    private static final AtomicInteger threadCount = new AtomicInteger();
+    private static final ThreadFactory daemonThreads = r -> {
+        Thread t = new Thread(r, "cache-refresher-" + threadCount.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    };
+    private static final ThreadPoolExecutor refresher = new ThreadPoolExecutor(refreshThreads.get(),
+            refreshThreads.get(), 0, MILLISECONDS, new PriorityBlockingQueue<>(), daemonThreads);
+    private static final ScheduledExecutorService scanner = newSingleThreadScheduledExecutor(daemonThreads);
+
+    static {
+        DefaultMonitorRegistry.getInstance().register(refreshes);
+        DefaultMonitorRegistry.getInstance().register(refreshesSkipped);
+        DefaultMonitorRegistry.getInstance().register(refreshesAhead);
+    }
+
+    private CacheRefreshScheduler() {
+    }
+
+    /**
+     * @param name                    cache name, for the logs
+     * @param refreshAfterWriteMillis current refresh interval of the cache
+     */
+    public static <K, V> Tracker<K, V> track(String name, LongSupplier refreshAfterWriteMillis) {
+        return new Tracker<>(name, refreshAfterWriteMillis);
+    }
+
+    private static <V> ListenableFuture<V> submit(long priority, V oldValue, Callable<V> loader) {
+        if (refresher.getQueue().size() >= maxQueued.get()) {
+            refreshesSkipped.increment();
+            return immediateFuture(oldValue);
+        }
+        SettableFuture<V> future = SettableFuture.create();
+        refresher.execute(new Refresh(priority, () -> {
+            try {
+                future.set(loader.call());
+            } catch (Throwable t) {
+                future.setException(t);
+            }
+        }));
+        refreshes.increment();
+        return future;
+    }
+
+    /**
+     * Access counts and refreshes of one cache.
+     */
+    public static final class Tracker<K, V> {
+        private final String name;
+        private final LongSupplier refreshAfterWriteMillis;
+        private final ConcurrentMap<K, LongAdder> hits = new ConcurrentHashMap<>();
+        // keys of the last scan window, most hit first
+        private volatile List<K> lastRanking = emptyList();
+
+        private Tracker(String name, LongSupplier refreshAfterWriteMillis) {
+            this.name = name;
+            this.refreshAfterWriteMillis = refreshAfterWriteMillis;
+        }
+
+        public void recordHit(K key) {
+            hits.computeIfAbsent(key, k -> new LongAdder()).increment();
+        }
+
+        /**
+         * @return the most hit keys of the last scan window, most hit first
+         */
+        public List<K> hottestKeys(int max) {
+            List<K> ranking = lastRanking;
+            return ranking.size() > max ? ranking.subList(0, max) : ranking;
+        }
+
+        /**
+         * To be called from {@code CacheLoader.reload}.
+         */
+        public ListenableFuture<V> reload(K key, V oldValue, Callable<V> loader) {
+            LongAdder keyHits = hits.get(key);
+            return submit(keyHits == null ? 0 : keyHits.sum(), oldValue, loader);
+        }
+
+        /**
+         * Refreshes the hot keys of the cache every pixelle.cache.refresh.ahead.ratio of its refresh interval, so
+         * that they are reloaded before a request finds them due.
+         *
+         * @param cache current instance of the cache
+         */
+        public void refreshAhead(Supplier<LoadingCache<K, V>> cache) {
+            scheduleScan(cache);
+        }
+
+        // rescheduled after each scan so that interval changes apply without a restart
+        private void scheduleScan(Supplier<LoadingCache<K, V>> cache) {
+            long period = Math.max((long) (refreshAfterWriteMillis.getAsLong() * aheadRatio.get()), 1000);
+            scanner.schedule(() -> {
+                try {
+                    refreshHotKeys(cache.get());
+                } catch (RuntimeException e) {
+                    logger.error("Could not refresh the hot keys of " + name, e);
+                }
+                scheduleScan(cache);
+            }, period, MILLISECONDS);
+        }
+
+        private void refreshHotKeys(LoadingCache<K, V> cache) {
+            List<Map.Entry<K, Long>> counts = new ArrayList<>();
+            for (Map.Entry<K, LongAdder> entry : hits.entrySet()) {
+                long count = entry.getValue().sum();
+                if (count > 0) {
+                    counts.add(new SimpleEntry<>(entry.getKey(), count));
+                }
+            }
+            counts.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+            List<K> ranking = new ArrayList<>(counts.size());
+            List<Map.Entry<K, Long>> hot = new ArrayList<>();
+            for (Map.Entry<K, Long> entry : counts) {
+                ranking.add(entry.getKey());
+                if (entry.getValue() >= hotHits.get() && cache.asMap().containsKey(entry.getKey())) {
+                    hot.add(entry);
+                }
+            }
+            lastRanking = unmodifiableList(ranking);
+            int refreshed = 0;
+            for (Map.Entry<K, Long> entry : hot) {
+                if (refreshed++ >= maxHotKeys.get()) {
+                    break;
+                }
+                cache.refresh(entry.getKey());
+                refreshesAhead.increment();
+            }
+            // every scan starts a new window, keys without hits are forgotten
+            Iterator<Map.Entry<K, LongAdder>> it = hits.entrySet().iterator();
+            while (it.hasNext()) {
+                if (it.next().getValue().sumThenReset() == 0) {
+                    it.remove();
+                }
+            }
+            logger.debug("Refreshed {} hot keys of {}", Math.min(hot.size(), maxHotKeys.get()), name);
+        }
+    }
+
+    private static final class Refresh implements Runnable, Comparable<Refresh> {
+        private final long priority;
+        private final Runnable task;
+
+        Refresh(long priority, Runnable task) {
+            this.priority = priority;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            task.run();
+        }
+
+        // most hit keys first
+        @Override
+        public int compareTo(Refresh other) {
+            return Long.compare(other.priority, priority);
+        }
+    }
+}
@@ -1,29 +1,43 @@
 package com.dailymotion.pixelle.common.services;
 
-import com.dailymotion.pixelle.de.model.SearchQueryRequest;
+import com.dailymotion.pixelle.common.services.CacheRefreshScheduler.Tracker;
+import com.dailymotion.pixelle.de.model.OrganicVideosKey;
 import com.dailymotion.pixelle.de.model.Video;
 import com.dailymotion.pixelle.de.model.VideoGroupKey;
 import com.dailymotion.pixelle.de.model.VideoResponse;
 import com.dailymotion.pixelle.de.processor.DeException;
-import com.dailymotion.pixelle.de.processor.DeHelper;
+import com.dailymotion.pixelle.de.processor.hystrix.DMApiChannelCollapser;
 import com.dailymotion.pixelle.de.processor.hystrix.DMApiQueryCommand;
 import com.dailymotion.pixelle.forecast.processor.ForecastException;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalNotification;
 import com.google.common.collect.Table;
 import com.google.common.util.concurrent.ListenableFuture;
-import com.google.common.util.concurrent.ListeningExecutorService;
+import com.netflix.config.DynamicBooleanProperty;
 import com.netflix.config.DynamicIntProperty;
 import com.netflix.config.DynamicLongProperty;
+import com.netflix.hystrix.HystrixExecutable;
+import com.netflix.hystrix.exception.HystrixRuntimeException;
 import org.slf4j.Logger;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.Future;
 
 import static com.dailymotion.pixelle.common.services.BigQuery.getCountryCountTable;
 import static com.dailymotion.pixelle.common.services.BigQuery.getCountryCountTableFromFile;
+import static com.dailymotion.pixelle.common.services.CacheRefreshScheduler.track;
+import static com.dailymotion.pixelle.common.services.VideoPool.share;
 import static com.dailymotion.pixelle.de.processor.ChannelProcessor.getFilteredVideos;
+import static com.dailymotion.pixelle.de.processor.ChannelProcessor.getStoredVideos;
+import static com.dailymotion.pixelle.de.processor.ChannelProcessor.mergeCreatedVideos;
+import static com.dailymotion.pixelle.de.processor.ChannelProcessor.submitAsyncIndexingTask;
 import static com.dailymotion.pixelle.de.processor.DeHelper.CATEGORIESBYCOUNTRY;
 import static com.dailymotion.pixelle.de.processor.DeHelper.DEVICESBYCOUNTRY;
 import static com.dailymotion.pixelle.de.processor.DeHelper.EVENTSBYCOUNTRY;
@@ -31,11 +45,8 @@ import static com.dailymotion.pixelle.de.processor.DeHelper.FORMATSBYCOUNTRY;
 import static com.dailymotion.pixelle.de.processor.DeHelper.LANGUAGEBYCOUNTRY;
 import static com.dailymotion.pixelle.de.processor.VideoProcessor.recommend;
 import static com.google.common.cache.CacheBuilder.newBuilder;
-import static com.google.common.util.concurrent.MoreExecutors.getExitingExecutorService;
-import static com.google.common.util.concurrent.MoreExecutors.listeningDecorator;
+import static com.google.common.util.concurrent.Futures.immediateFuture;
 import static com.netflix.config.DynamicPropertyFactory.getInstance;
-import static java.util.concurrent.Executors.newCachedThreadPool;
-import static java.util.concurrent.Executors.newSingleThreadExecutor;
 import static java.util.concurrent.TimeUnit.MINUTES;
 import static org.eclipse.jetty.http.HttpStatus.INTERNAL_SERVER_ERROR_500;
 import static org.slf4j.LoggerFactory.getLogger;
@@ -49,158 +60,469 @@ public class CacheService {
     private static final DynamicLongProperty chanRefreshAfterWriteMins = getInstance().getLongProperty("pixelle.channel.refresh.write.minutes", 4);
     private static final DynamicLongProperty countryCountRefreshAfterWriteMins = getInstance().getLongProperty("pixelle.bq.countrycounts.refresh.write.minutes", 1440); // 24 hours
     private static final DynamicLongProperty videoRefreshAfterWriteMins = getInstance().getLongProperty("pixelle.organic.refresh.write.minutes", 1);
-    private static final DynamicIntProperty channelLruSize = getInstance().getIntProperty("pixelle.channel.lru.size", 1000);
-    private static final DynamicIntProperty videoLruSize = getInstance().getIntProperty("pixelle.organic.lru.size", 1000);
+    // estimated retained bytes, see VideoListWeigher
+    private static final DynamicLongProperty channelMaxBytes = getInstance().getLongProperty("pixelle.channel.cache.max.bytes", 64L << 20);
+    private static final DynamicLongProperty videoMaxBytes = getInstance().getLongProperty("pixelle.organic.cache.max.bytes", 32L << 20);
     private static final DynamicIntProperty eventLruSize = getInstance().getIntProperty("pixelle.bq.eventcounts.lru.size", 10);
     private static final DynamicIntProperty maxVideosToCache = getInstance().getIntProperty("pixelle.organic.cache.max", 20);
-    //exiting service makes sure the thread terminates 120 secs after jvm shutdown
-    private static final ListeningExecutorService cacheMaintainer = listeningDecorator(getExitingExecutorService((ThreadPoolExecutor) newCachedThreadPool()));
-
-    private static final LoadingCache<String, Table<String, String, Long>> perCountryCountCache = newBuilder()
-            .recordStats()
-            .maximumSize(eventLruSize.get()).refreshAfterWrite(countryCountRefreshAfterWriteMins.get(), MINUTES)
-            .build(
-                    new CacheLoader<String, Table<String, String, Long>>() {
-                        @Override
-                        public Table<String, String, Long> load(String target) throws ForecastException {
-                            logger.info("Caching and indexing.." + target);
-                            return getCountryCountTableFromFile(target);
-                        }
+    // unrequested keys expire, only the requested ones keep being refreshed
+    private static final DynamicLongProperty chanExpireAfterAccessMins = getInstance().getLongProperty("pixelle.channel.expire.access.minutes", 30);
+    private static final DynamicLongProperty videoExpireAfterAccessMins = getInstance().getLongProperty("pixelle.organic.expire.access.minutes", 10);
 
-                        @Override
-                        public ListenableFuture<Table<String, String, Long>> reload(final String target, Table<String, String, Long> oldValue) throws DeException {
-                            logger.info("Reloading cache for key " + target);
-                            return cacheMaintainer.submit(() -> getCountryCountTable(target));
-                        }
-                    });
+    // last good channel videos served while the DM API fails, with exponential backoff of the refreshes
+    private static final DynamicLongProperty chanStaleMaxMins = getInstance().getLongProperty("pixelle.channel.stale.max.minutes", 120);
+    private static final DynamicLongProperty chanStaleBackoffMillis = getInstance().getLongProperty("pixelle.channel.stale.backoff.ms", 60000);
+    private static final DynamicLongProperty chanStaleMaxBackoffMillis = getInstance().getLongProperty("pixelle.channel.stale.backoff.max.ms", 1800000);
 
-    private static final LoadingCache<VideoGroupKey, List<VideoResponse>> groupVideosCache = newBuilder()
-            .recordStats()
-            .maximumSize(channelLruSize.get()).refreshAfterWrite(chanRefreshAfterWriteMins.get(), MINUTES)
-            .build(
-                    new CacheLoader<VideoGroupKey, List<VideoResponse>>() {
-                        @Override
-                        public List<VideoResponse> load(VideoGroupKey key) throws DeException {
-                            logger.info("Caching and indexing channel video..");
-                            List<Video> cVideos = new DMApiQueryCommand(key.getChannels(), key.getPlaylist(), key
-                                    .getSortOrder())
-                                    .execute();
-                            if (cVideos != null) {
-                                return getFilteredVideos(cVideos);
-                            }
-                            return null;
-                        }
+    private static final DynamicBooleanProperty collapseDmApiQueries = getInstance().getBooleanProperty("dm.api.collapser.enabled", false);
 
-                        @Override
-                        public ListenableFuture<List<VideoResponse>> reload(final VideoGroupKey key, List<VideoResponse>
-                                oldValue) throws DeException {
-                            logger.info("Reloading cache for key " + key.toString());
-                            ListenableFuture<List<VideoResponse>> listenableFuture = cacheMaintainer.submit(() -> {
-                                List<Video> cVideos = new DMApiQueryCommand(key.getChannels(), key.getPlaylist(), key
-                                        .getSortOrder())
-                                        .execute();
-                                if (cVideos != null) {
-                                    return getFilteredVideos(cVideos);
-                                }
-                                return null;
-                            });
-                            return listenableFuture;
+    // off heap second level, 0 disables it
+    private static final DynamicLongProperty channelOffHeapBytes = getInstance().getLongProperty("pixelle.channel.offheap.bytes", 0);
+    private static final DynamicLongProperty videoOffHeapBytes = getInstance().getLongProperty("pixelle.organic.offheap.bytes", 0);
+    private static final DynamicLongProperty chanOffHeapMaxAgeMins = getInstance().getLongProperty("pixelle.channel.offheap.max.age.minutes", 60);
+    private static final DynamicLongProperty videoOffHeapMaxAgeMins = getInstance().getLongProperty("pixelle.organic.offheap.max.age.minutes", 10);
 
-                        }
-                    });
+    private static final OffHeapVideoStore<VideoGroupKey> groupVideosL2 =
+            offHeapStore("groupVideos", channelOffHeapBytes.get(), chanOffHeapMaxAgeMins.get());
+    private static final OffHeapVideoStore<OrganicVideosKey> organicVideosL2 =
+            offHeapStore("organicVideos", videoOffHeapBytes.get(), videoOffHeapMaxAgeMins.get());
+
+    private static final VideoListWeigher<VideoGroupKey> groupVideosWeigher = new VideoListWeigher<>(
+            key -> VideoListWeigher.bytes(key.getChannels()) + VideoListWeigher.bytes(key.getPlaylist())
+                    + VideoListWeigher.bytes(key.getSortOrder()));
+    private static final VideoListWeigher<OrganicVideosKey> organicVideosWeigher = new VideoListWeigher<>(
+            key -> VideoListWeigher.bytes(key.getCategories()) + VideoListWeigher.bytes(key.getLanguages())
+                    + VideoListWeigher.bytes(key.getKeywords()));
 
-    private static final LoadingCache<SearchQueryRequest, List<VideoResponse>> organicVideosCache = newBuilder()
-            .recordStats()
-            .maximumSize(videoLruSize.get()).refreshAfterWrite(videoRefreshAfterWriteMins.get(), MINUTES)
-            .build(
-                    new CacheLoader<SearchQueryRequest, List<VideoResponse>>() {
-                        @Override
-                        public List<VideoResponse> load(SearchQueryRequest sq) throws Exception {
-                            List<VideoResponse> vr = recommend(sq, maxVideosToCache.get());
-                            logger.info("Caching organic videos..:", sq.toString());
-                            return vr;
+    private static final Tracker<String, Table<String, String, Long>> perCountryCountRefresh =
+            track("perCountryCountCache", () -> MINUTES.toMillis(countryCountRefreshAfterWriteMins.get()));
+    private static final Tracker<VideoGroupKey, List<VideoResponse>> groupVideosRefresh =
+            track("groupVideosCache", () -> MINUTES.toMillis(chanRefreshAfterWriteMins.get()));
+    private static final StaleIfError<VideoGroupKey> groupVideosStale = new StaleIfError<>("groupVideos",
+            () -> MINUTES.toMillis(chanStaleMaxMins.get()), chanStaleBackoffMillis::get,
+            chanStaleMaxBackoffMillis::get);
+    private static final Tracker<OrganicVideosKey, List<VideoResponse>> organicVideosRefresh =
+            track("organicVideosCache", () -> MINUTES.toMillis(videoRefreshAfterWriteMins.get()));
+
+    private static final CacheLoader<String, Table<String, String, Long>> perCountryCountLoader =
+            new CacheLoader<String, Table<String, String, Long>>() {
+                @Override
+                public Table<String, String, Long> load(String target) throws ForecastException {
+                    logger.info("Caching and indexing.." + target);
+                    return getCountryCountTableFromFile(target);
+                }
+
+                @Override
+                public ListenableFuture<Table<String, String, Long>> reload(final String target, Table<String, String, Long> oldValue) throws DeException {
+                    logger.info("Reloading cache for key " + target);
+                    return perCountryCountRefresh.reload(target, oldValue, () -> getCountryCountTable(target));
+                }
+            };
+
+    private static final CacheLoader<VideoGroupKey, List<VideoResponse>> groupVideosLoader =
+            new CacheLoader<VideoGroupKey, List<VideoResponse>>() {
+                @Override
+                public List<VideoResponse> load(VideoGroupKey key) throws DeException {
+                    List<VideoResponse> local = loadLocally(key);
+                    if (local != null) {
+                        return local;
+                    }
+                    logger.info("Caching and indexing channel video..");
+                    return loadGroupVideos(key);
+                }
+
+                // the DM API calls of the keys not found locally run in parallel
+                @Override
+                public Map<VideoGroupKey, List<VideoResponse>> loadAll(Iterable<? extends VideoGroupKey> keys)
+                        throws Exception {
+                    Map<VideoGroupKey, List<VideoResponse>> loaded = new HashMap<>();
+                    Map<VideoGroupKey, Future<List<Video>>> fetches = new HashMap<>();
+                    for (VideoGroupKey key : keys) {
+                        List<VideoResponse> local = loadLocally(key);
+                        if (local != null) {
+                            loaded.put(key, local);
+                        } else {
+                            fetches.put(key, dmApiQuery(key).queue());
+                        }
+                    }
+                    for (Map.Entry<VideoGroupKey, Future<List<Video>>> fetch : fetches.entrySet()) {
+                        List<VideoResponse> videos;
+                        try {
+                            videos = toGroupVideos(fetch.getKey(), fetch.getValue().get());
+                        } catch (ExecutionException e) {
+                            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                        }
+                        if (videos != null) {
+                            loaded.put(fetch.getKey(), videos);
                         }
+                    }
+                    return loaded;
+                }
 
-                        @Override
-                        public ListenableFuture<List<VideoResponse>> reload(final SearchQueryRequest sq, List<VideoResponse> oldValue) throws Exception {
-                            logger.info("Reloading cache for key " + sq);
-                            ListeningExecutorService executor = listeningDecorator(newSingleThreadExecutor());
-                            ListenableFuture<List<VideoResponse>> listenableFuture;
-                            try {
-                                listenableFuture = executor.submit(() -> recommend(sq, maxVideosToCache.get()));
-                                return listenableFuture;
-                            } finally {
-                                executor.shutdown();
-                            }
+                @Override
+                public ListenableFuture<List<VideoResponse>> reload(final VideoGroupKey key, List<VideoResponse>
+                        oldValue) throws DeException {
+                    logger.info("Reloading cache for key {}", key);
+                    if (groupVideosStale.backingOff(key)) {
+                        return immediateFuture(oldValue);
+                    }
+                    return groupVideosRefresh.reload(key, oldValue, () -> {
+                        try {
+                            Long createdAfter = ChannelSync.createdAfter(key);
+                            List<VideoResponse> videos = createdAfter != null && oldValue != null
+                                    ? syncGroupVideos(key, createdAfter, oldValue) : loadGroupVideos(key);
+                            groupVideosStale.forget(key);
+                            return videos;
+                        } catch (HystrixRuntimeException e) {
+                            return refreshFailed(key, oldValue, e);
                         }
                     });
+                }
+            };
 
+    private static final CacheLoader<OrganicVideosKey, List<VideoResponse>> organicVideosLoader =
+            new CacheLoader<OrganicVideosKey, List<VideoResponse>>() {
+                @Override
+                public List<VideoResponse> load(OrganicVideosKey key) throws Exception {
+                    List<VideoResponse> demoted = promote(organicVideosL2, key);
+                    if (demoted != null) {
+                        return demoted;
+                    }
+                    List<VideoResponse> vr = share(recommend(key.toSearchQuery(), maxVideosToCache.get()));
+                    logger.info("Caching organic videos..: {}", key);
+                    return vr;
+                }
+
+                @Override
+                public ListenableFuture<List<VideoResponse>> reload(final OrganicVideosKey key, List<VideoResponse> oldValue) throws Exception {
+                    logger.info("Reloading cache for key {}", key);
+                    return organicVideosRefresh.reload(key, oldValue,
+                            () -> share(recommend(key.toSearchQuery(), maxVideosToCache.get())));
+                }
+            };
+
+    // rebuilt when their size or refresh properties change
+    private static volatile LoadingCache<String, Table<String, String, Long>> perCountryCountCache =
+            buildPerCountryCountCache();
+    private static volatile LoadingCache<VideoGroupKey, List<VideoResponse>> groupVideosCache =
+            buildGroupVideosCache();
+    private static volatile LoadingCache<OrganicVideosKey, List<VideoResponse>> organicVideosCache =
+            buildOrganicVideosCache();
+
+    static {
+        perCountryCountRefresh.refreshAhead(() -> perCountryCountCache);
+        groupVideosRefresh.refreshAhead(() -> groupVideosCache);
+        organicVideosRefresh.refreshAhead(() -> organicVideosCache);
+
+        eventLruSize.addCallback(CacheService::rebuildPerCountryCountCache);
+        countryCountRefreshAfterWriteMins.addCallback(CacheService::rebuildPerCountryCountCache);
+        channelMaxBytes.addCallback(CacheService::rebuildGroupVideosCache);
+        chanRefreshAfterWriteMins.addCallback(CacheService::rebuildGroupVideosCache);
+        chanExpireAfterAccessMins.addCallback(CacheService::rebuildGroupVideosCache);
+        videoMaxBytes.addCallback(CacheService::rebuildOrganicVideosCache);
+        videoRefreshAfterWriteMins.addCallback(CacheService::rebuildOrganicVideosCache);
+        videoExpireAfterAccessMins.addCallback(CacheService::rebuildOrganicVideosCache);
+    }
 
     public static final LoadingCache<VideoGroupKey, List<VideoResponse>> getGroupVideosCache() {
         return groupVideosCache;
     }
 
-    public static final LoadingCache<SearchQueryRequest, List<VideoResponse>> getOrganicVideosCache() {
+    public static final LoadingCache<OrganicVideosKey, List<VideoResponse>> getOrganicVideosCache() {
         return organicVideosCache;
     }
 
+    private static LoadingCache<String, Table<String, String, Long>> buildPerCountryCountCache() {
+        return newBuilder()
+                .recordStats()
+                .maximumSize(eventLruSize.get()).refreshAfterWrite(countryCountRefreshAfterWriteMins.get(), MINUTES)
+                .build(perCountryCountLoader);
+    }
 
-    public static final LoadingCache<String, Table<String, String, Long>> getPerCountryCountCache() {
-        return perCountryCountCache;
+    private static LoadingCache<VideoGroupKey, List<VideoResponse>> buildGroupVideosCache() {
+        return newBuilder()
+                .recordStats()
+                .maximumWeight(channelMaxBytes.get()).weigher(groupVideosWeigher)
+                .refreshAfterWrite(chanRefreshAfterWriteMins.get(), MINUTES)
+                .expireAfterAccess(chanExpireAfterAccessMins.get(), MINUTES)
+                .removalListener((RemovalNotification<VideoGroupKey, List<VideoResponse>> n) -> {
+                    if (n.wasEvicted() && n.getKey() != null) {
+                        ChannelSync.forget(n.getKey());
+                        groupVideosStale.forget(n.getKey());
+                    }
+                    demote(groupVideosL2, n);
+                })
+                .build(groupVideosLoader);
     }
 
-    public static Table<String, String, Long> getCountryEventCountCache() throws ForecastException {
-        try {
-            return perCountryCountCache.get(EVENTSBYCOUNTRY);
-        } catch (ExecutionException e) {
-            throw new ForecastException(e, INTERNAL_SERVER_ERROR_500);
+    private static LoadingCache<OrganicVideosKey, List<VideoResponse>> buildOrganicVideosCache() {
+        return newBuilder()
+                .recordStats()
+                .maximumWeight(videoMaxBytes.get()).weigher(organicVideosWeigher)
+                .refreshAfterWrite(videoRefreshAfterWriteMins.get(), MINUTES)
+                .expireAfterAccess(videoExpireAfterAccessMins.get(), MINUTES)
+                .removalListener((RemovalNotification<OrganicVideosKey, List<VideoResponse>> n) -> demote(organicVideosL2, n))
+                .build(organicVideosLoader);
+    }
+
+    private static synchronized void rebuildPerCountryCountCache() {
+        perCountryCountCache = migrate("perCountryCountCache", perCountryCountCache, buildPerCountryCountCache(),
+                perCountryCountRefresh);
+    }
+
+    private static synchronized void rebuildGroupVideosCache() {
+        groupVideosCache = migrate("groupVideosCache", groupVideosCache, buildGroupVideosCache(), groupVideosRefresh);
+    }
+
+    private static synchronized void rebuildOrganicVideosCache() {
+        organicVideosCache = migrate("organicVideosCache", organicVideosCache, buildOrganicVideosCache(),
+                organicVideosRefresh);
+    }
+
+    /*
+      copies the entries of the old cache in the new one, the hottest last so that they are the most recently used
+      ones and survive if the new cache is smaller. Copied entries count as written now, they are not all due for a
+      refresh at once.
+     */
+    private static <K, V> LoadingCache<K, V> migrate(String name, LoadingCache<K, V> old, LoadingCache<K, V> rebuilt,
+                                                     Tracker<K, V> tracker) {
+        Map<K, V> entries = old.asMap();
+        List<K> hottest = tracker.hottestKeys(Integer.MAX_VALUE);
+        Set<K> hot = new HashSet<>(hottest);
+        for (Map.Entry<K, V> entry : entries.entrySet()) {
+            if (!hot.contains(entry.getKey())) {
+                rebuilt.put(entry.getKey(), entry.getValue());
+            }
         }
+        for (int i = hottest.size() - 1; i >= 0; i--) {
+            V value = entries.get(hottest.get(i));
+            if (value != null) {
+                rebuilt.put(hottest.get(i), value);
+            }
+        }
+        logger.info("Rebuilt {}, kept {} of {} entries", name, rebuilt.size(), old.size());
+        return rebuilt;
     }
 
-    public static Table<String, String, Long> getCountryDeviceCountCache() throws ForecastException {
-        try {
-            return perCountryCountCache.get(DEVICESBYCOUNTRY);
-        } catch (ExecutionException e) {
-            throw new ForecastException(e, INTERNAL_SERVER_ERROR_500);
+    /*
+      off heap level first, then the channel index
+     */
+    private static List<VideoResponse> loadLocally(VideoGroupKey key) {
+        List<VideoResponse> demoted = promote(groupVideosL2, key);
+        if (demoted != null) {
+            return demoted;
         }
+        return share(getStoredVideos(key));
     }
 
-    public static Table<String, String, Long> getCountryFormatCountCache() throws ForecastException {
-        try {
-            return perCountryCountCache.get(FORMATSBYCOUNTRY);
-        } catch (ExecutionException e) {
-            throw new ForecastException(e, INTERNAL_SERVER_ERROR_500);
+    /*
+      single channel queries are collapsed with the concurrent ones
+     */
+    private static HystrixExecutable<List<Video>> dmApiQuery(VideoGroupKey key) {
+        if (collapseDmApiQueries.get() && key.getPlaylist() == null && key.getChannels() != null
+                && key.getChannels().indexOf(',') < 0) {
+            return new DMApiChannelCollapser(key.getChannels(), key.getSortOrder());
         }
+        return new DMApiQueryCommand(key.getChannels(), key.getPlaylist(), key.getSortOrder());
     }
 
-    public static Table<String, String, Long> getCountryCategoryCountCache() throws ForecastException {
-        try {
-            return perCountryCountCache.get(CATEGORIESBYCOUNTRY);
-        } catch (ExecutionException e) {
-            throw new ForecastException(e, INTERNAL_SERVER_ERROR_500);
+    private static List<VideoResponse> loadGroupVideos(VideoGroupKey key) throws DeException {
+        return toGroupVideos(key, dmApiQuery(key).execute());
+    }
+
+    /*
+      only the videos created since the last sync are fetched, and added to the cached ones
+     */
+    private static List<VideoResponse> syncGroupVideos(VideoGroupKey key, long createdAfter,
+                                                       List<VideoResponse> oldValue) throws DeException {
+        List<Video> cVideos = new DMApiQueryCommand(key.getChannels(), key.getSortOrder(), createdAfter).execute();
+        if (cVideos == null) {
+            return loadGroupVideos(key);
         }
+        ChannelSync.incrementalSync(key, cVideos);
+        List<VideoResponse> videos = cVideos.isEmpty() ? oldValue
+                : share(mergeCreatedVideos(getFilteredVideos(cVideos), oldValue));
+        // keeps the stored batch fresh for the other nodes
+        submitAsyncIndexingTask(key, videos);
+        return videos;
     }
 
-    public static Table<String, String, Long> getCountryLangCountCache() throws ForecastException {
+    /*
+      DM API down, the channel index may have fresher videos than the old value, served until too old
+     */
+    static List<VideoResponse> refreshFailed(VideoGroupKey key, List<VideoResponse> oldValue,
+                                             HystrixRuntimeException e) {
+        boolean serveStale = groupVideosStale.failed(key);
+        List<VideoResponse> stored = share(getStoredVideos(key));
+        if (stored != null) {
+            return stored;
+        }
+        if (serveStale && oldValue != null) {
+            logger.warn("DM API failed, serving the last videos of " + key, e);
+            groupVideosStale.servedStale();
+            return oldValue;
+        }
+        throw e;
+    }
+
+    private static List<VideoResponse> toGroupVideos(VideoGroupKey key, List<Video> cVideos) {
+        if (cVideos != null) {
+            ChannelSync.fullSync(key, cVideos);
+            List<VideoResponse> videos = share(getFilteredVideos(cVideos));
+            submitAsyncIndexingTask(key, videos);
+            return videos;
+        }
+        return null;
+    }
+
+    private static <K> OffHeapVideoStore<K> offHeapStore(String name, long bytes, long maxAgeMins) {
+        return bytes > 0 ? new OffHeapVideoStore<>(name, bytes, MINUTES.toMillis(maxAgeMins)) : null;
+    }
+
+    /*
+      entries evicted from the heap are kept off heap, replaced and invalidated ones are not
+     */
+    private static <K> void demote(OffHeapVideoStore<K> store, RemovalNotification<K, List<VideoResponse>> n) {
+        if (store != null && n.wasEvicted() && n.getKey() != null) {
+            store.put(n.getKey(), n.getValue());
+        }
+    }
+
+    private static <K> List<VideoResponse> promote(OffHeapVideoStore<K> store, K key) {
+        return store == null ? null : share(store.get(key));
+    }
+
+    /**
+     * @return bytes used off heap by the channel and playlist videos cache
+     */
+    public static long getGroupVideosOffHeapBytes() {
+        return groupVideosL2 == null ? 0 : groupVideosL2.usedBytes();
+    }
+
+    /**
+     * @return bytes used off heap by the organic videos cache
+     */
+    public static long getOrganicVideosOffHeapBytes() {
+        return organicVideosL2 == null ? 0 : organicVideosL2.usedBytes();
+    }
+
+    /**
+     * @return estimated retained bytes of the channel and playlist videos cache
+     */
+    public static long getGroupVideosCacheBytes() {
+        return groupVideosWeigher.totalBytes(groupVideosCache);
+    }
+
+    /**
+     * @return estimated retained bytes of the organic videos cache
+     */
+    public static long getOrganicVideosCacheBytes() {
+        return organicVideosWeigher.totalBytes(organicVideosCache);
+    }
+
+
+    /**
+     * Cached organic videos of the key, counted as an access for the refreshes.
+     */
+    public static List<VideoResponse> getOrganicVideos(OrganicVideosKey key) throws ExecutionException {
+        organicVideosRefresh.recordHit(key);
+        return organicVideosCache.get(key);
+    }
+
+    /**
+     * @return cached organic videos of the key, null if not cached
+     */
+    public static List<VideoResponse> getOrganicVideosIfPresent(OrganicVideosKey key) {
+        List<VideoResponse> videos = organicVideosCache.getIfPresent(key);
+        if (videos != null) {
+            organicVideosRefresh.recordHit(key);
+        }
+        return videos;
+    }
+
+    static List<VideoGroupKey> hotGroupVideosKeys(int max) {
+        return groupVideosRefresh.hottestKeys(max);
+    }
+
+    static List<OrganicVideosKey> hotOrganicVideosKeys(int max) {
+        return organicVideosRefresh.hottestKeys(max);
+    }
+
+    /*
+      loads without counting an access, warm-ups do not make a key hot
+     */
+    static void preload(VideoGroupKey key) throws ExecutionException {
+        groupVideosCache.get(key);
+    }
+
+    static void preload(OrganicVideosKey key) throws ExecutionException {
+        organicVideosCache.get(key);
+    }
+
+    public static final LoadingCache<String, Table<String, String, Long>> getPerCountryCountCache() {
+        return perCountryCountCache;
+    }
+
+    private static Table<String, String, Long> getCountryCounts(String target) throws ForecastException {
+        perCountryCountRefresh.recordHit(target);
         try {
-            return perCountryCountCache.get(LANGUAGEBYCOUNTRY);
+            return perCountryCountCache.get(target);
         } catch (ExecutionException e) {
             throw new ForecastException(e, INTERNAL_SERVER_ERROR_500);
         }
     }
 
-    public static List<VideoResponse> getVideos(SearchQueryRequest sq, String sortOrder)
-            throws DeException {
+    public static Table<String, String, Long> getCountryEventCountCache() throws ForecastException {
+        return getCountryCounts(EVENTSBYCOUNTRY);
+    }
+
+    public static Table<String, String, Long> getCountryDeviceCountCache() throws ForecastException {
+        return getCountryCounts(DEVICESBYCOUNTRY);
+    }
+
+    public static Table<String, String, Long> getCountryFormatCountCache() throws ForecastException {
+        return getCountryCounts(FORMATSBYCOUNTRY);
+    }
+
+    public static Table<String, String, Long> getCountryCategoryCountCache() throws ForecastException {
+        return getCountryCounts(CATEGORIESBYCOUNTRY);
+    }
 
-        String channels = DeHelper.listToString(sq.getChannels());
-        String playlist = sq.getPlaylist();
+    public static Table<String, String, Long> getCountryLangCountCache() throws ForecastException {
+        return getCountryCounts(LANGUAGEBYCOUNTRY);
+    }
 
-        List<VideoResponse> videoResponses = null;
+    /**
+     * Cached videos of each key, the keys not cached yet are loaded in parallel.
+     *
+     * @return lists of videos, in the order of the keys
+     */
+    public static List<List<VideoResponse>> getGroupVideos(List<VideoGroupKey> keys) throws DeException {
+        List<List<VideoResponse>> lists = new ArrayList<>(keys.size());
         try {
-            videoResponses = groupVideosCache.get(new VideoGroupKey(channels, playlist, sortOrder));
+            if (keys.size() > 1) {
+                List<VideoGroupKey> missing = new ArrayList<>();
+                for (VideoGroupKey key : keys) {
+                    if (!groupVideosCache.asMap().containsKey(key)) {
+                        missing.add(key);
+                    }
+                }
+                if (missing.size() > 1) {
+                    groupVideosCache.getAll(missing);
+                }
+            }
+            // get also schedules the refresh of the entries due
+            for (VideoGroupKey key : keys) {
+                if (groupVideosStale.expire(key)) {
+                    // failing for longer than pixelle.channel.stale.max.minutes, loaded again or failed
+                    groupVideosCache.invalidate(key);
+                }
+                groupVideosRefresh.recordHit(key);
+                lists.add(groupVideosCache.get(key));
+            }
         } catch (ExecutionException e) {
             throw new DeException(e, INTERNAL_SERVER_ERROR_500);
         }
-        return videoResponses;
+        return lists;
     }
 }
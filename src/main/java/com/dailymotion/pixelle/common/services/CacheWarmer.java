@@ -0,0 +1,199 @@
+package com.dailymotion.pixelle.common.services;
+
+import com.dailymotion.pixelle.de.model.OrganicVideosKey;
+import com.dailymotion.pixelle.de.model.SearchQueryRequest;
+import com.dailymotion.pixelle.de.model.VideoGroupKey;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.netflix.config.DynamicBooleanProperty;
+import com.netflix.config.DynamicIntProperty;
+import com.netflix.config.DynamicLongProperty;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static com.dailymotion.pixelle.de.processor.DeHelper.dataDirectory;
+import static com.netflix.config.DynamicPropertyFactory.getInstance;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.util.concurrent.Executors.newFixedThreadPool;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Saves the most requested keys of the video caches under the datadir, and loads them back on startup before the
+ * server accepts requests, so that a restarted node does not send its first requests to the DM API and ES.
+ */
+public final class CacheWarmer {
+    private static final Logger logger = getLogger(CacheWarmer.class);
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    private static final String HOT_KEYS_FILE = "cache-hot-keys.json";
+    private static final String GROUP_VIDEOS = "groupVideos";
+    private static final String ORGANIC_VIDEOS = "organicVideos";
+    private static final DynamicBooleanProperty enabled =
+            getInstance().getBooleanProperty("pixelle.cache.warmup.enabled", false);
+    private static final DynamicIntProperty maxKeys =
+            getInstance().getIntProperty("pixelle.cache.warmup.keys", 200);
+    private static final DynamicIntProperty warmUpThreads =
+            getInstance().getIntProperty("pixelle.cache.warmup.threads", 8);
+    private static final DynamicLongProperty warmUpTimeoutMillis =
+            getInstance().getLongProperty("pixelle.cache.warmup.timeout.ms", 60000);
+    private static final DynamicLongProperty saveIntervalMins =
+            getInstance().getLongProperty("pixelle.cache.warmup.save.minutes", 5);
+    private static ScheduledExecutorService saver;
+
+    private CacheWarmer() {
+    }
+
+    /**
+     * Loads the saved keys in the caches, waiting at most pixelle.cache.warmup.timeout.ms.
+     */
+    public static void warmUp() {
+        if (!enabled.get()) {
+            return;
+        }
+        Path file = hotKeysFile();
+        if (!Files.exists(file)) {
+            logger.info("No saved cache keys in {}", file);
+            return;
+        }
+        List<Runnable> loads = new ArrayList<>();
+        try {
+            JsonNode keys = OBJECT_MAPPER.readTree(file.toFile());
+            for (JsonNode node : keys.path(GROUP_VIDEOS)) {
+                VideoGroupKey key = new VideoGroupKey(text(node, "channels"), text(node, "playlist"),
+                        text(node, "sort_order"));
+                loads.add(() -> preload(key));
+            }
+            for (JsonNode node : keys.path(ORGANIC_VIDEOS)) {
+                SearchQueryRequest sq = new SearchQueryRequest();
+                sq.setCategories(OBJECT_MAPPER.convertValue(node.path("categories"), new TypeReference<List<String>>() {
+                }));
+                sq.setLanguages(OBJECT_MAPPER.convertValue(node.path("languages"), new TypeReference<List<String>>() {
+                }));
+                sq.setKeywords(OBJECT_MAPPER.convertValue(node.path("keywords"),
+                        new TypeReference<Map<String, Float>>() {
+                        }));
+                OrganicVideosKey key = OrganicVideosKey.of(sq);
+                loads.add(() -> preload(key));
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            logger.warn("Could not read the saved cache keys from " + file, e);
+            return;
+        }
+        ExecutorService loaders = newFixedThreadPool(Math.max(warmUpThreads.get(), 1), r -> {
+            Thread t = new Thread(r, "cache-warmer");
+            t.setDaemon(true);
+            return t;
+        });
+        long start = System.currentTimeMillis();
+        loads.forEach(loaders::execute);
+        loaders.shutdown();
+        try {
+            if (!loaders.awaitTermination(warmUpTimeoutMillis.get(), MILLISECONDS)) {
+                logger.warn("Cache warm-up timed out, starting with a partly warm cache");
+                loaders.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            loaders.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        logger.info("Warmed up {} cache keys in {} ms", loads.size(), System.currentTimeMillis() - start);
+    }
+
+    private static void preload(VideoGroupKey key) {
+        try {
+            CacheService.preload(key);
+        } catch (ExecutionException | RuntimeException e) {
+            logger.warn("Could not warm up " + key, e);
+        }
+    }
+
+    private static void preload(OrganicVideosKey key) {
+        try {
+            CacheService.preload(key);
+        } catch (ExecutionException | RuntimeException e) {
+            logger.warn("Could not warm up " + key, e);
+        }
+    }
+
+    private static String text(JsonNode node, String field) {
+        JsonNode value = node.get(field);
+        return value == null || value.isNull() ? null : value.asText();
+    }
+
+    /**
+     * Saves the hot keys every pixelle.cache.warmup.save.minutes.
+     */
+    public static synchronized void start() {
+        if (saver == null && enabled.get()) {
+            saver = newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "cache-key-saver");
+                t.setDaemon(true);
+                return t;
+            });
+            long period = Math.max(saveIntervalMins.get(), 1);
+            saver.scheduleWithFixedDelay(CacheWarmer::save, period, period, MINUTES);
+        }
+    }
+
+    /**
+     * Stops the periodic saves, saving one last time.
+     */
+    public static synchronized void stop() {
+        if (saver != null) {
+            saver.shutdownNow();
+            saver = null;
+            save();
+        }
+    }
+
+    static void save() {
+        ObjectNode keys = OBJECT_MAPPER.createObjectNode();
+        ArrayNode groupVideos = keys.putArray(GROUP_VIDEOS);
+        for (VideoGroupKey key : CacheService.hotGroupVideosKeys(maxKeys.get())) {
+            groupVideos.addObject()
+                    .put("channels", key.getChannels())
+                    .put("playlist", key.getPlaylist())
+                    .put("sort_order", key.getSortOrder());
+        }
+        ArrayNode organicVideos = keys.putArray(ORGANIC_VIDEOS);
+        for (OrganicVideosKey key : CacheService.hotOrganicVideosKeys(maxKeys.get())) {
+            ObjectNode node = organicVideos.addObject();
+            node.set("categories", OBJECT_MAPPER.valueToTree(key.getCategories()));
+            node.set("languages", OBJECT_MAPPER.valueToTree(key.getLanguages()));
+            node.set("keywords", OBJECT_MAPPER.valueToTree(key.getKeywords()));
+        }
+        if (groupVideos.size() == 0 && organicVideos.size() == 0) {
+            // keep the previous keys, a node restarted twice in a row has not seen any request yet
+            return;
+        }
+        Path file = hotKeysFile();
+        Path tmp = file.resolveSibling(HOT_KEYS_FILE + ".tmp");
+        try {
+            OBJECT_MAPPER.writeValue(tmp.toFile(), keys);
+            Files.move(tmp, file, REPLACE_EXISTING, ATOMIC_MOVE);
+            logger.info("Saved {} hot cache keys to {}", groupVideos.size() + organicVideos.size(), file);
+        } catch (IOException e) {
+            logger.warn("Could not save the hot cache keys to " + file, e);
+        }
+    }
+
+    private static Path hotKeysFile() {
+        return Paths.get(dataDirectory.get(), HOT_KEYS_FILE);
+    }
+}
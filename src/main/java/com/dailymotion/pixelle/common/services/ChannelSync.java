@@ -0,0 +1,122 @@
+package com.dailymotion.pixelle.common.services;
+
+import com.dailymotion.pixelle.de.model.Video;
+import com.dailymotion.pixelle.de.model.VideoGroupKey;
+import com.netflix.config.DynamicBooleanProperty;
+import com.netflix.config.DynamicLongProperty;
+import com.netflix.servo.DefaultMonitorRegistry;
+import com.netflix.servo.monitor.BasicCounter;
+import com.netflix.servo.monitor.Counter;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static com.netflix.config.DynamicPropertyFactory.getInstance;
+import static com.netflix.servo.monitor.MonitorConfig.builder;
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+/**
+ * Sync watermarks of the cached channel videos. Once the recent videos of channels have been fetched, their refreshes
+ * only ask the DM API for the videos created since the newest one seen, and a full fetch is done every
+ * dm.api.sync.full.interval.minutes to pick up the videos changed or removed since.
+ */
+final class ChannelSync {
+    private static final DynamicBooleanProperty enabled =
+            getInstance().getBooleanProperty("dm.api.sync.incremental.enabled", false);
+    private static final DynamicLongProperty fullSyncIntervalMins =
+            getInstance().getLongProperty("dm.api.sync.full.interval.minutes", 60);
+    private static final String RECENT = "recent";
+    private static final ConcurrentMap<VideoGroupKey, Watermark> watermarks = new ConcurrentHashMap<>();
+    // JMX: com.netflix.servo.COUNTER.ChannelSyncFull
+    private static final Counter fullSyncs = new BasicCounter(builder("ChannelSyncFull").build());
+    // JMX: com.netflix.servo.COUNTER.ChannelSyncIncremental
+    private static final Counter incrementalSyncs = new BasicCounter(builder("ChannelSyncIncremental").build());
+
+    static {
+        DefaultMonitorRegistry.getInstance().register(fullSyncs);
+        DefaultMonitorRegistry.getInstance().register(incrementalSyncs);
+    }
+
+    private ChannelSync() {
+    }
+
+    /**
+     * @return the created_time after which to fetch the videos of the key, null if it needs a full fetch
+     */
+    static Long createdAfter(VideoGroupKey key) {
+        if (!syncable(key)) {
+            return null;
+        }
+        Watermark watermark = watermarks.get(key);
+        if (watermark == null
+                || System.currentTimeMillis() - watermark.fullSyncTime > MINUTES.toMillis(fullSyncIntervalMins.get())) {
+            return null;
+        }
+        return watermark.createdTime;
+    }
+
+    /**
+     * Records a fetch of all the recent videos of the key.
+     *
+     * @param videos videos returned by the DM API, filtered ones included
+     */
+    static void fullSync(VideoGroupKey key, List<Video> videos) {
+        if (!syncable(key)) {
+            return;
+        }
+        Long newest = newest(videos);
+        if (newest == null) {
+            // nothing to sync from, the next refresh is a full one again
+            watermarks.remove(key);
+        } else {
+            watermarks.put(key, new Watermark(newest, System.currentTimeMillis()));
+        }
+        fullSyncs.increment();
+    }
+
+    /**
+     * Records a fetch of the videos created after the watermark of the key.
+     */
+    static void incrementalSync(VideoGroupKey key, List<Video> videos) {
+        Long newest = newest(videos);
+        if (newest != null) {
+            watermarks.computeIfPresent(key,
+                    (k, w) -> newest > w.createdTime ? new Watermark(newest, w.fullSyncTime) : w);
+        }
+        incrementalSyncs.increment();
+    }
+
+    /**
+     * To be called when the videos of the key leave the cache.
+     */
+    static void forget(VideoGroupKey key) {
+        watermarks.remove(key);
+    }
+
+    // the DM API filters the videos of owners by creation time only, which only the recent order is sorted by
+    private static boolean syncable(VideoGroupKey key) {
+        return enabled.get() && key.getChannels() != null && key.getPlaylist() == null
+                && RECENT.equals(key.getSortOrder());
+    }
+
+    private static Long newest(List<Video> videos) {
+        Long newest = null;
+        for (Video video : videos) {
+            if (video.getCreatedTime() != null && (newest == null || video.getCreatedTime() > newest)) {
+                newest = video.getCreatedTime();
+            }
+        }
+        return newest;
+    }
+
+    private static final class Watermark {
+        private final long createdTime;
+        private final long fullSyncTime;
+
+        Watermark(long createdTime, long fullSyncTime) {
+            this.createdTime = createdTime;
+            this.fullSyncTime = fullSyncTime;
+        }
+    }
+}
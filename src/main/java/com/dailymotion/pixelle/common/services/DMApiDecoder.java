@@ -0,0 +1,32 @@
+package com.dailymotion.pixelle.common.services;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import feign.Response;
+import feign.codec.Decoder;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+
+import static com.fasterxml.jackson.databind.DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES;
+
+/**
+ * Decodes the DM API responses while they are read from the connection. Jackson parses the UTF-8 bytes directly,
+ * the feign JacksonDecoder going through a Reader decodes every char first.
+ */
+public class DMApiDecoder implements Decoder {
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper().configure(FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    @Override
+    public Object decode(Response response, Type type) throws IOException {
+        if (response.body() == null) {
+            return null;
+        }
+        try (JsonParser parser = OBJECT_MAPPER.getFactory().createParser(response.body().asInputStream())) {
+            if (parser.nextToken() == null) {
+                return null;
+            }
+            return OBJECT_MAPPER.readValue(parser, OBJECT_MAPPER.constructType(type));
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.dailymotion.pixelle.common.services;
+
+import com.netflix.config.DynamicIntProperty;
+import com.netflix.config.DynamicLongProperty;
+import com.netflix.servo.DefaultMonitorRegistry;
+import com.netflix.servo.monitor.BasicGauge;
+import feign.Client;
+import feign.Request;
+import feign.Response;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.RequestBuilder;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static com.netflix.config.DynamicPropertyFactory.getInstance;
+import static com.netflix.servo.monitor.MonitorConfig.builder;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.apache.http.HttpHeaders.CONTENT_LENGTH;
+
+/**
+ * Feign transport for the DM API over a pool of persistent connections, instead of a new HttpURLConnection per call.
+ * Requests are sent with Accept-Encoding gzip, deflate and the responses are inflated while Jackson reads them.
+ */
+public final class DMApiHttpClient implements Client {
+    private static final DynamicIntProperty maxConnections =
+            getInstance().getIntProperty("dm.api.http.max.connections", 200);
+    private static final DynamicIntProperty maxConnectionsPerRoute =
+            getInstance().getIntProperty("dm.api.http.max.connections.per.route", 50);
+    private static final DynamicLongProperty idleTimeoutMillis =
+            getInstance().getLongProperty("dm.api.http.idle.timeout.ms", 30000);
+    private static final PoolingHttpClientConnectionManager pool = new PoolingHttpClientConnectionManager();
+    // the builder adds the gzip request and response interceptors unless content compression is disabled
+    private static final CloseableHttpClient httpClient = HttpClients.custom()
+            .setConnectionManager(pool)
+            .evictIdleConnections(idleTimeoutMillis.get(), MILLISECONDS)
+            .build();
+
+    static {
+        pool.setMaxTotal(maxConnections.get());
+        pool.setDefaultMaxPerRoute(maxConnectionsPerRoute.get());
+        maxConnections.addCallback(() -> pool.setMaxTotal(maxConnections.get()));
+        maxConnectionsPerRoute.addCallback(() -> pool.setDefaultMaxPerRoute(maxConnectionsPerRoute.get()));
+        // JMX: com.netflix.servo.GAUGE.DMApiPoolLeased
+        DefaultMonitorRegistry.getInstance().register(new BasicGauge<>(builder("DMApiPoolLeased").build(),
+                () -> pool.getTotalStats().getLeased()));
+        // JMX: com.netflix.servo.GAUGE.DMApiPoolAvailable
+        DefaultMonitorRegistry.getInstance().register(new BasicGauge<>(builder("DMApiPoolAvailable").build(),
+                () -> pool.getTotalStats().getAvailable()));
+        // JMX: com.netflix.servo.GAUGE.DMApiPoolPending
+        DefaultMonitorRegistry.getInstance().register(new BasicGauge<>(builder("DMApiPoolPending").build(),
+                () -> pool.getTotalStats().getPending()));
+        // JMX: com.netflix.servo.GAUGE.DMApiPoolMax
+        DefaultMonitorRegistry.getInstance().register(new BasicGauge<>(builder("DMApiPoolMax").build(),
+                () -> pool.getTotalStats().getMax()));
+    }
+
+    @Override
+    public Response execute(Request request, Request.Options options) throws IOException {
+        RequestBuilder builder = RequestBuilder.create(request.method())
+                .setUri(request.url())
+                .setConfig(RequestConfig.custom()
+                        .setConnectTimeout(options.connectTimeoutMillis())
+                        .setConnectionRequestTimeout(options.connectTimeoutMillis())
+                        .setSocketTimeout(options.readTimeoutMillis())
+                        .build());
+        for (Map.Entry<String, Collection<String>> header : request.headers().entrySet()) {
+            // set by the client from the entity
+            if (CONTENT_LENGTH.equalsIgnoreCase(header.getKey())) {
+                continue;
+            }
+            for (String value : header.getValue()) {
+                builder.addHeader(header.getKey(), value);
+            }
+        }
+        if (request.body() != null) {
+            builder.setEntity(new ByteArrayEntity(request.body()));
+        }
+        CloseableHttpResponse response = httpClient.execute(builder.build());
+        Map<String, Collection<String>> headers = new LinkedHashMap<>();
+        for (Header header : response.getAllHeaders()) {
+            headers.computeIfAbsent(header.getName(), k -> new ArrayList<>()).add(header.getValue());
+        }
+        HttpEntity entity = response.getEntity();
+        if (entity == null) {
+            response.close();
+            return Response.create(response.getStatusLine().getStatusCode(),
+                    response.getStatusLine().getReasonPhrase(), headers, null, null);
+        }
+        // closing the body once decoded gives the connection back to the pool
+        long length = entity.getContentLength();
+        return Response.create(response.getStatusLine().getStatusCode(), response.getStatusLine().getReasonPhrase(),
+                headers, entity.getContent(), length >= 0 && length <= Integer.MAX_VALUE ? (int) length : null);
+    }
+}
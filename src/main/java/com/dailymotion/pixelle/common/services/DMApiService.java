@@ -16,6 +16,12 @@ public interface DMApiService {
     DMApiResponse getChannelVideos(@Param("channels") String channelIds, @Param("order") String sortOrder) throws
             DeException;
 
+    @RequestLine("GET /videos?owners={channels}&fields=id,3d,ads,allow_embed,channel,owner.screenname,created_time," +
+            "updated_time,description,duration,explicit,geoblocking,language,mediablocking,mode,owner.id,owner" +
+            ".username,published,status,tags,thumbnail_url,title,&sort={order}&created_after={createdAfter}&limit=50")
+    DMApiResponse getChannelVideosCreatedAfter(@Param("channels") String channelIds, @Param("order") String sortOrder,
+                                               @Param("createdAfter") Long createdAfter) throws DeException;
+
     @RequestLine("GET /playlist/{playlist}/videos?fields=id,3d,ads,allow_embed,channel,owner" +
             ".screenname,created_time," +
             "updated_time,description,duration,explicit,geoblocking,language,mediablocking,mode,owner.id,owner" +
@@ -0,0 +1,283 @@
+package com.dailymotion.pixelle.common.services;
+
+import com.dailymotion.pixelle.de.model.VideoResponse;
+import com.netflix.servo.DefaultMonitorRegistry;
+import com.netflix.servo.monitor.BasicCounter;
+import com.netflix.servo.monitor.Counter;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static com.netflix.servo.monitor.MonitorConfig.builder;
+import static org.elasticsearch.common.xcontent.XContentFactory.smileBuilder;
+import static org.elasticsearch.common.xcontent.smile.SmileXContent.smileXContent;
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Second level for the video caches: lists of videos Smile encoded in direct buffers, outside of the heap. Only the
+ * key index stays on heap. The buffers are split in segments written one after the other, when the last one is full
+ * the oldest is dropped and rewritten, which evicts its entries in insertion order.
+ */
+final class OffHeapVideoStore<K> {
+    private static final Logger logger = getLogger(OffHeapVideoStore.class);
+    static final int SEGMENTS = 16;
+
+    private final String name;
+    private final long maxAgeMillis;
+    private final Segment[] segments;
+    private final ConcurrentMap<K, Location> index = new ConcurrentHashMap<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Counter hits;
+    private final Counter misses;
+    private int current;
+
+    /**
+     * @param name         cache name, prefix of the counters
+     * @param capacity     bytes allocated off heap
+     * @param maxAgeMillis entries older than this are ignored
+     */
+    OffHeapVideoStore(String name, long capacity, long maxAgeMillis) {
+        this.name = name;
+        this.maxAgeMillis = maxAgeMillis;
+        int segmentBytes = (int) Math.min(capacity / SEGMENTS, Integer.MAX_VALUE);
+        segments = new Segment[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(ByteBuffer.allocateDirect(segmentBytes));
+        }
+        // JMX: com.netflix.servo.COUNTER.<name>OffHeapHits
+        hits = new BasicCounter(builder(name + "OffHeapHits").build());
+        // JMX: com.netflix.servo.COUNTER.<name>OffHeapMisses
+        misses = new BasicCounter(builder(name + "OffHeapMisses").build());
+        DefaultMonitorRegistry.getInstance().register(hits);
+        DefaultMonitorRegistry.getInstance().register(misses);
+        logger.info("Allocated {} bytes off heap for {}", (long) segmentBytes * SEGMENTS, name);
+    }
+
+    /**
+     * @return the stored videos, null if absent, evicted or too old
+     */
+    List<VideoResponse> get(K key) {
+        Location location = index.get(key);
+        if (location == null || System.currentTimeMillis() - location.writeTime > maxAgeMillis) {
+            misses.increment();
+            return null;
+        }
+        byte[] bytes = new byte[location.length];
+        lock.readLock().lock();
+        try {
+            Segment segment = segments[location.segment];
+            if (segment.generation != location.generation) {
+                misses.increment();
+                return null;
+            }
+            ByteBuffer buffer = segment.buffer.duplicate();
+            buffer.position(location.offset);
+            buffer.get(bytes);
+        } finally {
+            lock.readLock().unlock();
+        }
+        try {
+            List<VideoResponse> videos = decode(bytes);
+            hits.increment();
+            return videos;
+        } catch (IOException e) {
+            logger.warn("Could not decode the " + name + " entry of " + key, e);
+            index.remove(key, location);
+            misses.increment();
+            return null;
+        }
+    }
+
+    void put(K key, List<VideoResponse> videos) {
+        if (videos == null) {
+            return;
+        }
+        BytesReference bytes;
+        try {
+            bytes = encode(videos);
+        } catch (IOException e) {
+            logger.warn("Could not encode the " + name + " entry of " + key, e);
+            return;
+        }
+        if (bytes.length() > segments[0].buffer.capacity()) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            Segment segment = segments[current];
+            if (segment.buffer.remaining() < bytes.length()) {
+                current = (current + 1) % SEGMENTS;
+                segment = segments[current];
+                recycle(segment, current);
+            }
+            Location location = new Location(current, segment.generation, segment.buffer.position(), bytes.length(),
+                    System.currentTimeMillis());
+            segment.buffer.put(bytes.toBytes());
+            segment.keys.add(key);
+            index.put(key, location);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void recycle(Segment segment, int id) {
+        for (Object key : segment.keys) {
+            Location location = index.get(key);
+            if (location != null && location.segment == id && location.generation == segment.generation) {
+                index.remove((K) key, location);
+            }
+        }
+        segment.keys.clear();
+        segment.buffer.clear();
+        segment.generation++;
+    }
+
+    void remove(K key) {
+        index.remove(key);
+    }
+
+    /**
+     * @return bytes written in the buffers
+     */
+    long usedBytes() {
+        lock.readLock().lock();
+        try {
+            long used = 0;
+            for (Segment segment : segments) {
+                used += segment.buffer.position();
+            }
+            return used;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    static BytesReference encode(List<VideoResponse> videos) throws IOException {
+        XContentBuilder builder = smileBuilder();
+        builder.startArray();
+        for (VideoResponse video : videos) {
+            builder.startObject();
+            field(builder, "video_id", video.getVideoId());
+            field(builder, "channel", video.getChannel());
+            field(builder, "channel_name", video.getChannelName());
+            field(builder, "channel_id", video.getChannelId());
+            field(builder, "channel_tier", video.getChannelTier());
+            field(builder, "description", video.getDescription());
+            field(builder, "title", video.getTitle());
+            if (video.getDuration() != null) {
+                builder.field("duration", video.getDuration().intValue());
+            }
+            field(builder, "resizable_thumbnail_url", video.getResizableThumbnailUrl());
+            field(builder, "type", video.getContentType());
+            if (video.getCreatedTime() != null) {
+                builder.field("created_time", video.getCreatedTime().longValue());
+            }
+            builder.endObject();
+        }
+        builder.endArray();
+        return builder.bytes();
+    }
+
+    private static void field(XContentBuilder builder, String name, String value) throws IOException {
+        if (value != null) {
+            builder.field(name, value);
+        }
+    }
+
+    static List<VideoResponse> decode(byte[] bytes) throws IOException {
+        List<VideoResponse> videos = new ArrayList<>();
+        try (XContentParser parser = smileXContent.createParser(bytes)) {
+            parser.nextToken();
+            while (parser.nextToken() == XContentParser.Token.START_OBJECT) {
+                VideoResponse video = new VideoResponse();
+                String field = null;
+                XContentParser.Token token;
+                while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+                    if (token == XContentParser.Token.FIELD_NAME) {
+                        field = parser.currentName();
+                    } else if ("duration".equals(field)) {
+                        video.setDuration(parser.intValue());
+                    } else if ("created_time".equals(field)) {
+                        video.setCreatedTime(parser.longValue());
+                    } else {
+                        setField(video, field, parser.text());
+                    }
+                }
+                videos.add(video);
+            }
+        }
+        return videos;
+    }
+
+    private static void setField(VideoResponse video, String field, String value) {
+        switch (field) {
+            case "video_id":
+                video.setVideoId(value);
+                break;
+            case "channel":
+                video.setChannel(value);
+                break;
+            case "channel_name":
+                video.setChannelName(value);
+                break;
+            case "channel_id":
+                video.setChannelId(value);
+                break;
+            case "channel_tier":
+                video.setChannelTier(value);
+                break;
+            case "description":
+                video.setDescription(value);
+                break;
+            case "title":
+                video.setTitle(value);
+                break;
+            case "resizable_thumbnail_url":
+                video.setResizableThumbnailUrl(value);
+                break;
+            case "type":
+                video.setContentType(value);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static final class Location {
+        private final int segment;
+        private final long generation;
+        private final int offset;
+        private final int length;
+        private final long writeTime;
+
+        Location(int segment, long generation, int offset, int length, long writeTime) {
+            this.segment = segment;
+            this.generation = generation;
+            this.offset = offset;
+            this.length = length;
+            this.writeTime = writeTime;
+        }
+    }
+
+    private static final class Segment {
+        private final ByteBuffer buffer;
+        // keys written in the current generation, dropped from the index when the segment is rewritten
+        private final List<Object> keys = new ArrayList<>();
+        private long generation;
+
+        Segment(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.dailymotion.pixelle.common.services;
+
+import com.netflix.servo.DefaultMonitorRegistry;
+import com.netflix.servo.monitor.BasicCounter;
+import com.netflix.servo.monitor.Counter;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.LongSupplier;
+
+import static com.netflix.servo.monitor.MonitorConfig.builder;
+
+/**
+ * Failed refreshes of a cache. The last good value of a failing key is served until it is older than the max
+ * staleness, counted from the first failed refresh, and the key is not refreshed again before its retry time, which
+ * doubles with every failure.
+ */
+final class StaleIfError<K> {
+    private final LongSupplier maxStaleMillis;
+    private final LongSupplier initialBackoffMillis;
+    private final LongSupplier maxBackoffMillis;
+    private final ConcurrentMap<K, Failure> failures = new ConcurrentHashMap<>();
+    private final Counter staleServed;
+    private final Counter staleExpired;
+    private final Counter backoffs;
+
+    /**
+     * @param name cache name, prefix of the counters
+     */
+    StaleIfError(String name, LongSupplier maxStaleMillis, LongSupplier initialBackoffMillis,
+                 LongSupplier maxBackoffMillis) {
+        this.maxStaleMillis = maxStaleMillis;
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        // JMX: com.netflix.servo.COUNTER.<name>StaleServed
+        staleServed = new BasicCounter(builder(name + "StaleServed").build());
+        // JMX: com.netflix.servo.COUNTER.<name>StaleExpired
+        staleExpired = new BasicCounter(builder(name + "StaleExpired").build());
+        // JMX: com.netflix.servo.COUNTER.<name>RefreshBackoffs
+        backoffs = new BasicCounter(builder(name + "RefreshBackoffs").build());
+        DefaultMonitorRegistry.getInstance().register(staleServed);
+        DefaultMonitorRegistry.getInstance().register(staleExpired);
+        DefaultMonitorRegistry.getInstance().register(backoffs);
+    }
+
+    /**
+     * @return true if the key failed and its retry time is not reached, its refresh is then skipped
+     */
+    boolean backingOff(K key) {
+        Failure failure = failures.get(key);
+        if (failure != null && System.currentTimeMillis() < failure.retryTime) {
+            backoffs.increment();
+            staleServed.increment();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Records a failed refresh of the key.
+     *
+     * @return true if the last good value can still be served
+     */
+    boolean failed(K key) {
+        long now = System.currentTimeMillis();
+        Failure failure = failures.compute(key, (k, f) -> {
+            int count = f == null ? 1 : f.count + 1;
+            long backoff = Math.min(initialBackoffMillis.getAsLong() << Math.min(count - 1, 30),
+                    maxBackoffMillis.getAsLong());
+            return new Failure(count, f == null ? now : f.since, now + backoff);
+        });
+        return now - failure.since <= maxStaleMillis.getAsLong();
+    }
+
+    /**
+     * To be called when the last good value is served after a failed refresh.
+     */
+    void servedStale() {
+        staleServed.increment();
+    }
+
+    /**
+     * Forgets the failures of the key, after a good value or when it leaves the cache.
+     */
+    void forget(K key) {
+        failures.remove(key);
+    }
+
+    /**
+     * @return true if the last good value of the key is too old to be served, the key being forgotten
+     */
+    boolean expire(K key) {
+        Failure failure = failures.get(key);
+        if (failure != null && System.currentTimeMillis() - failure.since > maxStaleMillis.getAsLong()
+                && failures.remove(key, failure)) {
+            staleExpired.increment();
+            return true;
+        }
+        return false;
+    }
+
+    private static final class Failure {
+        private final int count;
+        // first failure since the last good value
+        private final long since;
+        private final long retryTime;
+
+        Failure(int count, long since, long retryTime) {
+            this.count = count;
+            this.since = since;
+            this.retryTime = retryTime;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.dailymotion.pixelle.common.services;
+
+import com.dailymotion.pixelle.de.model.VideoResponse;
+import com.google.common.cache.Cache;
+import com.google.common.cache.Weigher;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.function.ToIntFunction;
+
+/**
+ * Estimated retained bytes of a cached list of videos and of its key, for caches bounded by memory rather than by
+ * entry count. Sizes are those of a 64 bit JVM with compressed oops, strings being counted with their char array.
+ * Videos shared through VideoPool are counted in every entry holding them, the estimate is an upper bound.
+ */
+final class VideoListWeigher<K> implements Weigher<K, List<VideoResponse>> {
+    private static final int ENTRY_BYTES = 64;
+    private static final int LIST_BYTES = 40;
+    private static final int REFERENCE_BYTES = 4;
+    private static final int STRING_BYTES = 40;
+    private static final int INTEGER_BYTES = 16;
+    private static final int LONG_BYTES = 24;
+    private static final int VIDEO_BYTES = 64;
+
+    private final ToIntFunction<K> keyBytes;
+
+    /**
+     * @param keyBytes estimated bytes of a key
+     */
+    VideoListWeigher(ToIntFunction<K> keyBytes) {
+        this.keyBytes = keyBytes;
+    }
+
+    static int bytes(String s) {
+        return s == null ? 0 : STRING_BYTES + 2 * s.length();
+    }
+
+    static int bytes(Collection<String> values) {
+        if (values == null) {
+            return 0;
+        }
+        int bytes = LIST_BYTES + REFERENCE_BYTES * values.size();
+        for (String value : values) {
+            bytes += bytes(value);
+        }
+        return bytes;
+    }
+
+    static int bytes(Map<String, Float> values) {
+        if (values == null) {
+            return 0;
+        }
+        // map entry and boxed float per key
+        int bytes = LIST_BYTES + (ENTRY_BYTES / 2 + INTEGER_BYTES) * values.size();
+        for (String key : values.keySet()) {
+            bytes += bytes(key);
+        }
+        return bytes;
+    }
+
+    // contentType is the shared "organic" literal
+    static int bytes(VideoResponse video) {
+        return VIDEO_BYTES + bytes(video.getVideoId()) + bytes(video.getChannel()) + bytes(video.getChannelName())
+                + bytes(video.getChannelId()) + bytes(video.getChannelTier()) + bytes(video.getDescription())
+                + bytes(video.getTitle()) + (video.getDuration() == null ? 0 : INTEGER_BYTES)
+                + bytes(video.getResizableThumbnailUrl()) + bytes(video.getDebugInfo())
+                + (video.getCreatedTime() == null ? 0 : LONG_BYTES);
+    }
+
+    @Override
+    public int weigh(K key, List<VideoResponse> videos) {
+        int bytes = ENTRY_BYTES + keyBytes.applyAsInt(key);
+        if (videos != null) {
+            bytes += LIST_BYTES + REFERENCE_BYTES * videos.size();
+            for (VideoResponse video : videos) {
+                bytes += bytes(video);
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * @return estimated bytes of all the entries of the cache
+     */
+    long totalBytes(Cache<K, List<VideoResponse>> cache) {
+        long bytes = 0;
+        for (Map.Entry<K, List<VideoResponse>> entry : cache.asMap().entrySet()) {
+            bytes += weigh(entry.getKey(), entry.getValue());
+        }
+        return bytes;
+    }
+}
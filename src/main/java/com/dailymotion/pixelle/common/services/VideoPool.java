@@ -0,0 +1,51 @@
+package com.dailymotion.pixelle.common.services;
+
+import com.dailymotion.pixelle.de.model.VideoResponse;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+import java.util.List;
+
+/**
+ * Videos shared by the entries of the video caches. A video in many cached lists, or in the lists of both caches, is
+ * held once, and so are the channel strings repeated by all the videos of a channel. The pool holds its videos
+ * weakly, they go away with the last cached list referencing them. Pooled videos must not be modified, a video whose
+ * fields changed is pooled as a new instance.
+ */
+final class VideoPool {
+    private static final Interner<VideoResponse> videos = Interners.newWeakInterner();
+    private static final Interner<String> strings = Interners.newWeakInterner();
+
+    private VideoPool() {
+    }
+
+    /**
+     * @return an immutable list of the pooled instances of the videos, null if videos is null
+     */
+    static List<VideoResponse> share(List<VideoResponse> videos) {
+        if (videos == null) {
+            return null;
+        }
+        ImmutableList.Builder<VideoResponse> shared = ImmutableList.builder();
+        for (VideoResponse video : videos) {
+            if (video != null) {
+                shared.add(share(video));
+            }
+        }
+        return shared.build();
+    }
+
+    static VideoResponse share(VideoResponse video) {
+        video.setChannel(share(video.getChannel()));
+        video.setChannelName(share(video.getChannelName()));
+        video.setChannelId(share(video.getChannelId()));
+        video.setChannelTier(share(video.getChannelTier()));
+        video.setContentType(share(video.getContentType()));
+        return videos.intern(video);
+    }
+
+    private static String share(String s) {
+        return s == null ? null : strings.intern(s);
+    }
+}
@@ -3,6 +3,7 @@ package com.dailymotion.pixelle.de.model;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 import lombok.Data;
 import org.slf4j.Logger;
 
@@ -50,6 +51,10 @@ public class AdUnit {
     private String goalPeriod;
     @JsonProperty("goal_views")
     private Float goalViews;
+    @JsonProperty("goal_reached")
+    private Boolean goalReached;
+    @JsonProperty("ctr_score")
+    private Float ctrScore;
     @JsonProperty("duration")
     private Integer duration;
     @JsonProperty("clicks")
@@ -74,12 +79,15 @@ public class AdUnit {
     private String currency;
     @JsonProperty("schedules")
     private Integer[] schedules;
-    @JsonProperty("timetable")
-    private List<String> timetable;
+    // hours of the week the ad does not run, 0 being sunday midnight, usually empty
+    @JsonProperty("blocked_hours")
+    private List<Integer> blockedHours;
     @JsonProperty("start_date")
-    private String startDate;
+    @JsonDeserialize(using = EpochMillisDeserializer.class)
+    private Long startDate;
     @JsonProperty("end_date")
-    private String endDate;
+    @JsonDeserialize(using = EpochMillisDeserializer.class)
+    private Long endDate;
     @JsonProperty("_updated")
     private String updated;
     @JsonProperty("_created")
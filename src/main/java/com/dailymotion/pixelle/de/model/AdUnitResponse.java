@@ -17,6 +17,10 @@ import static org.slf4j.LoggerFactory.getLogger;
 @EqualsAndHashCode(callSuper = false)
 public class AdUnitResponse extends ItemsResponse {
     private static Logger logger = getLogger(AdUnitResponse.class);
+    // source fields read by this response, the search only fetches these
+    public static final String[] SOURCE_FIELDS = {"ad", "campaign", "tactic", "channel", "channel_name", "account",
+            "video_id", "description", "title", "duration", "cpc", "cpv", "internal_cpv", "currency", "autoplay",
+            "resizable_thumbnail_url", "custom_video_url"};
     @JsonProperty("ad")
     private String ad;
     @JsonProperty("campaign")
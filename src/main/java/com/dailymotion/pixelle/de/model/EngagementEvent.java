@@ -0,0 +1,23 @@
+package com.dailymotion.pixelle.de.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.Data;
+
+/**
+ * Clicks, views and impressions to add to an ad unit (type promoted) or a video (type organic).
+ */
+@JsonInclude(JsonInclude.Include.NON_EMPTY)
+@Data
+public class EngagementEvent {
+    @JsonProperty("type")
+    private String type;
+    @JsonProperty("id")
+    private String id;
+    @JsonProperty("clicks")
+    private Integer clicks;
+    @JsonProperty("views")
+    private Integer views;
+    @JsonProperty("impressions")
+    private Integer impressions;
+}
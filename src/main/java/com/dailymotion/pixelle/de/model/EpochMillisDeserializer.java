@@ -0,0 +1,33 @@
+package com.dailymotion.pixelle.de.model;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JsonDeserializer;
+
+import java.io.IOException;
+
+import static com.dailymotion.pixelle.de.processor.DeHelper.toEpochMillis;
+import static org.apache.commons.lang3.StringUtils.isBlank;
+
+/**
+ * Accepts dates either as epoch millis or as yyyy-MM-dd'T'HH:mm:ssZ strings, so that clients can keep sending
+ * ISO dates while we store millis.
+ */
+public class EpochMillisDeserializer extends JsonDeserializer<Long> {
+    @Override
+    public Long deserialize(JsonParser p, DeserializationContext ctxt) throws IOException {
+        if (p.getCurrentToken() == JsonToken.VALUE_NUMBER_INT) {
+            return p.getLongValue();
+        }
+        String text = p.getValueAsString();
+        if (isBlank(text)) {
+            return null;
+        }
+        try {
+            return toEpochMillis(text.trim());
+        } catch (IllegalArgumentException e) {
+            throw ctxt.weirdStringException(text, Long.class, "not a yyyy-MM-dd'T'HH:mm:ssZ date");
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.dailymotion.pixelle.de.model;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedMap;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static org.apache.commons.lang3.StringUtils.isBlank;
+import static org.apache.commons.lang3.StringUtils.lowerCase;
+
+/**
+ * Organic videos cache key: the parts of a search query the targeted video search depends on, in canonical form.
+ * Values are lowercased, deduplicated and sorted and always contain "all", the same as after
+ * DEProcessor.modifySearchQueryReq, so that requests selecting the same videos share an entry. Immutable, the hash
+ * is computed once.
+ */
+public final class OrganicVideosKey {
+    private static final String ALL = "all";
+    private final List<String> categories;
+    private final List<String> languages;
+    private final SortedMap<String, Float> keywords;
+    private final int hash;
+
+    private OrganicVideosKey(List<String> categories, List<String> languages, SortedMap<String, Float> keywords) {
+        this.categories = categories;
+        this.languages = languages;
+        this.keywords = keywords;
+        this.hash = 31 * (31 * categories.hashCode() + languages.hashCode()) + keywords.hashCode();
+    }
+
+    public static OrganicVideosKey of(SearchQueryRequest sq) {
+        // keywords differing only by case match the same videos, the highest boost is kept
+        TreeMap<String, Float> keywords = new TreeMap<>();
+        if (sq.getKeywords() != null) {
+            for (Map.Entry<String, Float> entry : sq.getKeywords().entrySet()) {
+                if (!isBlank(entry.getKey())) {
+                    Float boost = entry.getValue() == null ? 0f : entry.getValue();
+                    keywords.merge(lowerCase(entry.getKey()), boost, Math::max);
+                }
+            }
+        }
+        return new OrganicVideosKey(canonical(sq.getCategories()), canonical(sq.getLanguages()),
+                ImmutableSortedMap.copyOfSorted(keywords));
+    }
+
+    private static List<String> canonical(Collection<String> values) {
+        TreeSet<String> sorted = new TreeSet<>();
+        sorted.add(ALL);
+        if (values != null) {
+            for (String value : values) {
+                if (!isBlank(value)) {
+                    sorted.add(lowerCase(value));
+                }
+            }
+        }
+        return ImmutableList.copyOf(sorted);
+    }
+
+    /**
+     * @return a new search query selecting the videos of this key
+     */
+    public SearchQueryRequest toSearchQuery() {
+        SearchQueryRequest sq = new SearchQueryRequest();
+        sq.setCategories(new ArrayList<>(categories));
+        sq.setLanguages(new ArrayList<>(languages));
+        if (!keywords.isEmpty()) {
+            sq.setKeywords(new TreeMap<>(keywords));
+        }
+        return sq;
+    }
+
+    public List<String> getCategories() {
+        return categories;
+    }
+
+    public List<String> getLanguages() {
+        return languages;
+    }
+
+    public SortedMap<String, Float> getKeywords() {
+        return keywords;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof OrganicVideosKey)) {
+            return false;
+        }
+        OrganicVideosKey other = (OrganicVideosKey) o;
+        return hash == other.hash && categories.equals(other.categories) && languages.equals(other.languages)
+                && keywords.equals(other.keywords);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return "OrganicVideosKey(categories=" + categories + ", languages=" + languages + ", keywords=" + keywords + ")";
+    }
+}
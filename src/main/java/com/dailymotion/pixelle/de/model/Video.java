@@ -43,6 +43,10 @@ public class Video {
     private Integer views;
     @JsonProperty("impressions")
     private float impressions;
+    @JsonProperty("ctr_score")
+    private Float ctrScore;
+    @JsonProperty("tier_weight")
+    private Float tierWeight;
     @JsonProperty("created_time")
     private Long createdTime;
     @JsonProperty("updated_time")
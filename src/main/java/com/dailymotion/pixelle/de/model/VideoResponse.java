@@ -16,6 +16,9 @@ import static org.slf4j.LoggerFactory.getLogger;
 @EqualsAndHashCode(callSuper = false)
 public class VideoResponse extends ItemsResponse {
     private static Logger logger = getLogger(VideoResponse.class);
+    // source fields read by this response, the search only fetches these
+    public static final String[] SOURCE_FIELDS = {"video_id", "channel", "channel_name", "channel_id",
+            "channel_tier", "description", "title", "duration", "resizable_thumbnail_url", "created_time"};
     @JsonProperty("video_id")
     private String videoId;
     @JsonProperty("channel")
@@ -38,4 +41,7 @@ public class VideoResponse extends ItemsResponse {
     private String contentType = "organic";
     @JsonProperty("debug")
     private String debugInfo;
+    // read from the sources to merge channel videos, not part of the response
+    @JsonProperty(value = "created_time", access = JsonProperty.Access.WRITE_ONLY)
+    private Long createdTime;
 }
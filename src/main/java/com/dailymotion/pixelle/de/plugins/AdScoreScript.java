@@ -0,0 +1,84 @@
+package com.dailymotion.pixelle.de.plugins;
+
+import org.elasticsearch.index.fielddata.ScriptDocValues;
+import org.elasticsearch.script.AbstractDoubleSearchScript;
+import org.elasticsearch.script.ExecutableScript;
+import org.elasticsearch.script.NativeScriptFactory;
+
+import java.util.List;
+import java.util.Map;
+
+import static com.dailymotion.pixelle.de.processor.DeHelper.ctrScore;
+
+/**
+ * Full ad score in one pass over the doc values: autoplay boost, ctr, minimum ctr boost for ads without enough
+ * data and internal cpv. Same as the function_score chain built in AdUnitProcessor with score_mode multiply.
+ */
+public class AdScoreScript extends AbstractDoubleSearchScript {
+    public static final String NAME = "ad_score";
+    public static final String AUTOPLAY_BOOST = "autoplay_boost";
+    public static final String MIN_CTR_BOOST = "min_ctr_boost";
+    public static final String CPV_WEIGHT = "cpv_weight";
+
+    private final double autoplayBoost;
+    private final double minCtrBoost;
+    private final double cpvWeight;
+
+    private AdScoreScript(Map<String, Object> params) {
+        autoplayBoost = doubleParam(params, AUTOPLAY_BOOST, 1);
+        minCtrBoost = doubleParam(params, MIN_CTR_BOOST, 1);
+        cpvWeight = doubleParam(params, CPV_WEIGHT, 1);
+    }
+
+    /**
+     * Request independent part of the score, missing values are passed as null.
+     */
+    public static double score(Number clicks, Number views, Number impressions, Number internalCpv,
+                               double minCtrBoost, double cpvWeight) {
+        double score = 1;
+        Float ctrScore = ctrScore(clicks, impressions);
+        if (ctrScore != null) {
+            score *= ctrScore;
+        }
+        //use a default boost equivalent to 100% ctr for ads without enough data
+        if (clicks == null || views == null || impressions == null || clicks.doubleValue() < 1000
+                || views.doubleValue() < 500 || impressions.doubleValue() < 10000) {
+            score *= minCtrBoost;
+        }
+        if (internalCpv != null) {
+            score *= internalCpv.doubleValue() * cpvWeight;
+        }
+        return score;
+    }
+
+    static double doubleParam(Map<String, Object> params, String name, double defaultValue) {
+        Object value = params == null ? null : params.get(name);
+        return value instanceof Number ? ((Number) value).doubleValue() : defaultValue;
+    }
+
+    /**
+     * @return first value of a numeric field (float or integer mapped), null if missing
+     */
+    static Number numericValue(Object docValues) {
+        List<?> values = ((ScriptDocValues<?>) docValues).getValues();
+        return values.isEmpty() ? null : (Number) values.get(0);
+    }
+
+    @Override
+    public double runAsDouble() {
+        double score = score(numericValue(doc().get("clicks")), numericValue(doc().get("views")),
+                numericValue(doc().get("impressions")), numericValue(doc().get("internal_cpv")), minCtrBoost, cpvWeight);
+        ScriptDocValues.Strings autoplay = docFieldStrings("autoplay");
+        if (!autoplay.isEmpty() && ("T".equals(autoplay.getValue()) || "true".equals(autoplay.getValue()))) {
+            score *= autoplayBoost;
+        }
+        return score;
+    }
+
+    public static class Factory implements NativeScriptFactory {
+        @Override
+        public ExecutableScript newScript(Map<String, Object> params) {
+            return new AdScoreScript(params);
+        }
+    }
+}
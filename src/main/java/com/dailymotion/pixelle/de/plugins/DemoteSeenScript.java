@@ -0,0 +1,59 @@
+package com.dailymotion.pixelle.de.plugins;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.index.fielddata.ScriptDocValues;
+import org.elasticsearch.script.AbstractDoubleSearchScript;
+import org.elasticsearch.script.ExecutableScript;
+import org.elasticsearch.script.NativeScriptFactory;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps the score of unseen ads and maps the score of already seen ones to a negative value, preserving their
+ * order, so that seen ads only fill the positions left by unseen ones. Meant for boost_mode replace.
+ */
+public class DemoteSeenScript extends AbstractDoubleSearchScript {
+    public static final String NAME = "demote_seen";
+    public static final String VIDEO_IDS = "video_ids";
+
+    private final Set<String> seenVideoIds;
+
+    private DemoteSeenScript(Set<String> seenVideoIds) {
+        this.seenVideoIds = seenVideoIds;
+    }
+
+    /**
+     * @return score for unseen ads, a negative value increasing with the score for seen ones
+     */
+    public static double demote(double score, boolean seen) {
+        return seen ? -1 / (1 + Math.max(score, 0)) : score;
+    }
+
+    @Override
+    public double runAsDouble() {
+        ScriptDocValues.Strings videoId = docFieldStrings("video_id");
+        try {
+            return demote(score(), !videoId.isEmpty() && seenVideoIds.contains(videoId.getValue()));
+        } catch (IOException e) {
+            throw new ElasticsearchException("could not read the doc score", e);
+        }
+    }
+
+    public static class Factory implements NativeScriptFactory {
+        @Override
+        public ExecutableScript newScript(Map<String, Object> params) {
+            Set<String> seenVideoIds = new HashSet<>();
+            Object videoIds = params == null ? null : params.get(VIDEO_IDS);
+            if (videoIds instanceof Collection) {
+                for (Object id : (Collection<?>) videoIds) {
+                    seenVideoIds.add(String.valueOf(id));
+                }
+            }
+            return new DemoteSeenScript(seenVideoIds);
+        }
+    }
+}
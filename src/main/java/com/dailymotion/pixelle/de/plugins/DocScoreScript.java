@@ -0,0 +1,33 @@
+package com.dailymotion.pixelle.de.plugins;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.script.AbstractDoubleSearchScript;
+import org.elasticsearch.script.ExecutableScript;
+import org.elasticsearch.script.NativeScriptFactory;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Score of the current doc, for aggregations ordering buckets by relevance (expressions only expose the score
+ * to sorting).
+ */
+public class DocScoreScript extends AbstractDoubleSearchScript {
+    public static final String NAME = "doc_score";
+
+    @Override
+    public double runAsDouble() {
+        try {
+            return score();
+        } catch (IOException e) {
+            throw new ElasticsearchException("could not read the doc score", e);
+        }
+    }
+
+    public static class Factory implements NativeScriptFactory {
+        @Override
+        public ExecutableScript newScript(Map<String, Object> params) {
+            return new DocScoreScript();
+        }
+    }
+}
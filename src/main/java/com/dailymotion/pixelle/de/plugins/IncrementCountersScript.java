@@ -0,0 +1,94 @@
+package com.dailymotion.pixelle.de.plugins;
+
+import org.elasticsearch.script.AbstractExecutableScript;
+import org.elasticsearch.script.ExecutableScript;
+import org.elasticsearch.script.NativeScriptFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.dailymotion.pixelle.de.plugins.AdScoreScript.doubleParam;
+import static com.dailymotion.pixelle.de.processor.DeHelper.ctrScore;
+
+/**
+ * Update script adding engagement deltas to the clicks, views and impressions of an ad or video, and keeping the
+ * fields derived from them (ctr_score, goal_reached) in sync.
+ */
+public class IncrementCountersScript extends AbstractExecutableScript {
+    public static final String NAME = "increment_counters";
+    public static final String CLICKS = "clicks";
+    public static final String VIEWS = "views";
+    public static final String IMPRESSIONS = "impressions";
+
+    private final long clicks;
+    private final long views;
+    private final long impressions;
+    private Map<String, Object> ctx;
+
+    private IncrementCountersScript(Map<String, Object> params) {
+        clicks = (long) doubleParam(params, CLICKS, 0);
+        views = (long) doubleParam(params, VIEWS, 0);
+        impressions = (long) doubleParam(params, IMPRESSIONS, 0);
+    }
+
+    public static Map<String, Object> params(long clicks, long views, long impressions) {
+        Map<String, Object> params = new HashMap<>();
+        params.put(CLICKS, clicks);
+        params.put(VIEWS, views);
+        params.put(IMPRESSIONS, impressions);
+        return params;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void setNextVar(String name, Object value) {
+        if ("ctx".equals(name)) {
+            ctx = (Map<String, Object>) value;
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Object run() {
+        Map<String, Object> source = (Map<String, Object>) ctx.get("_source");
+        Number newClicks = increment(source, CLICKS, clicks);
+        Number newViews = increment(source, VIEWS, views);
+        Number newImpressions = increment(source, IMPRESSIONS, impressions);
+
+        Float ctrScore = ctrScore(newClicks, newImpressions);
+        if (ctrScore != null) {
+            source.put("ctr_score", ctrScore);
+        } else {
+            source.remove("ctr_score");
+        }
+        Object goalViews = source.get("goal_views");
+        if (goalViews instanceof Number && newViews != null) {
+            source.put("goal_reached", newViews.doubleValue() >= ((Number) goalViews).doubleValue());
+        }
+        return null;
+    }
+
+    private static Number increment(Map<String, Object> source, String field, long delta) {
+        Object current = source.get(field);
+        if (delta == 0) {
+            return current instanceof Number ? (Number) current : null;
+        }
+        Number value;
+        if (current instanceof Double || current instanceof Float) {
+            value = ((Number) current).doubleValue() + delta;
+        } else if (current instanceof Number) {
+            value = ((Number) current).longValue() + delta;
+        } else {
+            value = delta;
+        }
+        source.put(field, value);
+        return value;
+    }
+
+    public static class Factory implements NativeScriptFactory {
+        @Override
+        public ExecutableScript newScript(Map<String, Object> params) {
+            return new IncrementCountersScript(params);
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package com.dailymotion.pixelle.de.plugins;
+
+import org.elasticsearch.plugins.AbstractPlugin;
+import org.elasticsearch.script.ScriptModule;
+
+/**
+ * Registers our native scoring and update scripts with the embedded node.
+ */
+public class ScoringPlugin extends AbstractPlugin {
+    @Override
+    public String name() {
+        return "pixelle-scoring";
+    }
+
+    @Override
+    public String description() {
+        return "Native ad and organic video scoring";
+    }
+
+    public void onModule(ScriptModule module) {
+        module.registerScript(AdScoreScript.NAME, AdScoreScript.Factory.class);
+        module.registerScript(VideoScoreScript.NAME, VideoScoreScript.Factory.class);
+        module.registerScript(DocScoreScript.NAME, DocScoreScript.Factory.class);
+        module.registerScript(DemoteSeenScript.NAME, DemoteSeenScript.Factory.class);
+        module.registerScript(IncrementCountersScript.NAME, IncrementCountersScript.Factory.class);
+    }
+}
@@ -0,0 +1,77 @@
+package com.dailymotion.pixelle.de.plugins;
+
+import org.elasticsearch.index.fielddata.ScriptDocValues;
+import org.elasticsearch.script.AbstractDoubleSearchScript;
+import org.elasticsearch.script.ExecutableScript;
+import org.elasticsearch.script.NativeScriptFactory;
+
+import java.util.Map;
+
+import static com.dailymotion.pixelle.de.plugins.AdScoreScript.doubleParam;
+import static com.dailymotion.pixelle.de.plugins.AdScoreScript.numericValue;
+import static com.dailymotion.pixelle.de.processor.DeHelper.ctrScore;
+
+/**
+ * Full organic video score in one pass over the doc values: gauss decay on the publication date (origin is now),
+ * ctr and channel tier weight. Same as the function_score chain built in VideoProcessor with score_mode multiply.
+ */
+public class VideoScoreScript extends AbstractDoubleSearchScript {
+    public static final String NAME = "video_score";
+    public static final String DECAY = "decay";
+    public static final String SCALE_MILLIS = "scale_millis";
+    public static final String OFFSET_MILLIS = "offset_millis";
+    public static final String GOLD_WEIGHT = "gold_weight";
+    public static final String SILVER_WEIGHT = "silver_weight";
+    public static final String BRONZE_WEIGHT = "bronze_weight";
+
+    private final long origin = System.currentTimeMillis();
+    private final double offset;
+    private final double twoSigmaSquare;
+    private final double goldWeight;
+    private final double silverWeight;
+    private final double bronzeWeight;
+
+    private VideoScoreScript(Map<String, Object> params) {
+        double scale = doubleParam(params, SCALE_MILLIS, 1);
+        double decay = doubleParam(params, DECAY, 0.5);
+        offset = doubleParam(params, OFFSET_MILLIS, 0);
+        // same sigma as the gauss decay function of ES
+        twoSigmaSquare = 2 * (-scale * scale / (2 * Math.log(decay)));
+        goldWeight = doubleParam(params, GOLD_WEIGHT, 1);
+        silverWeight = doubleParam(params, SILVER_WEIGHT, 1);
+        bronzeWeight = doubleParam(params, BRONZE_WEIGHT, 1);
+    }
+
+    @Override
+    public double runAsDouble() {
+        double score = 1;
+        Number publicationDate = numericValue(doc().get("publication_date"));
+        if (publicationDate != null) {
+            double distance = Math.max(0, Math.abs(publicationDate.longValue() - origin) - offset);
+            score *= Math.exp(-distance * distance / twoSigmaSquare);
+        }
+        Float ctrScore = ctrScore(numericValue(doc().get("clicks")), numericValue(doc().get("impressions")));
+        if (ctrScore != null) {
+            score *= ctrScore;
+        }
+        ScriptDocValues.Strings tier = docFieldStrings("channel_tier");
+        if (!tier.isEmpty()) {
+            String channelTier = tier.getValue();
+            if ("gold".equals(channelTier)) {
+                score *= goldWeight;
+            } else if ("silver".equals(channelTier)) {
+                score *= silverWeight;
+            } else if ("bronze".equals(channelTier)) {
+                score *= bronzeWeight;
+            }
+        }
+        return score;
+    }
+
+    public static class Factory implements NativeScriptFactory {
+        @Override
+        public ExecutableScript newScript(Map<String, Object> params) {
+            return new VideoScoreScript(params);
+        }
+    }
+}
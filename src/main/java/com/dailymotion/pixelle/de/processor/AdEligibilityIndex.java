@@ -0,0 +1,355 @@
+package com.dailymotion.pixelle.de.processor;
+
+import com.dailymotion.pixelle.de.model.AdUnit;
+import com.dailymotion.pixelle.de.model.AdUnitResponse;
+import com.dailymotion.pixelle.de.model.SearchQueryRequest;
+import com.dailymotion.pixelle.de.plugins.AdScoreScript;
+import org.slf4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.dailymotion.pixelle.de.processor.AdUnitProcessor.CPV_WEIGHT;
+import static com.dailymotion.pixelle.de.processor.AdUnitProcessor.MIN_CTR_BOOST;
+import static com.dailymotion.pixelle.de.processor.AdUnitProcessor.isGoalReached;
+import static com.dailymotion.pixelle.de.processor.DeHelper.DAYS;
+import static com.dailymotion.pixelle.de.processor.DeHelper.FORMAT.INWIDGET;
+import static com.dailymotion.pixelle.de.processor.DeHelper.HOURS_IN_DAY;
+import static com.dailymotion.pixelle.de.processor.DeHelper.isEmptyList;
+import static org.apache.commons.lang3.StringUtils.equalsIgnoreCase;
+import static org.apache.commons.lang3.StringUtils.isNotBlank;
+import static org.apache.commons.lang3.StringUtils.lowerCase;
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * In-memory eligibility index over all live adunits. Each targeting field is dictionary encoded into one bitmap
+ * per value, so that targeting a query is a handful of AND/ANDNOT operations instead of an ES search.
+ * <p>
+ * Writes rebuild an immutable snapshot which is then published for the readers. Our inventory is small, so a
+ * rebuild is cheap and the query path never takes a lock. The promoted index stays the source of truth: the
+ * index is bootstrapped from it and every write is read back from it before being applied here. Until a full load
+ * succeeds writes are not published, a partial inventory is never served.
+ */
+public final class AdEligibilityIndex {
+    private static final Logger logger = getLogger(AdEligibilityIndex.class);
+    // insertion ordered so that ties are broken the same way lucene breaks them (by doc id)
+    private static final Map<String, AdUnit> liveAdUnits = new LinkedHashMap<>();
+    private static volatile Snapshot snapshot;
+    // set by a full load only, writes are picked up by that load until then
+    private static boolean loaded;
+
+    private AdEligibilityIndex() {
+    }
+
+    public static boolean isReady() {
+        return snapshot != null;
+    }
+
+    public static int size() {
+        Snapshot s = snapshot;
+        return s == null ? 0 : s.units.length;
+    }
+
+    /**
+     * Replaces the whole content of the index.
+     *
+     * @param adUnits all live adunits, may be null
+     */
+    public static synchronized void rebuild(Collection<AdUnit> adUnits) {
+        liveAdUnits.clear();
+        loaded = true;
+        if (adUnits != null) {
+            for (AdUnit unit : adUnits) {
+                if (unit != null && unit.getId() != null) {
+                    liveAdUnits.put(unit.getId(), unit);
+                }
+            }
+        }
+        publish();
+    }
+
+    public static synchronized void put(AdUnit unit) {
+        if (!loaded || unit == null || unit.getId() == null) {
+            return;
+        }
+        // an update moves the document to the end, the same as a re-indexed lucene doc
+        liveAdUnits.remove(unit.getId());
+        liveAdUnits.put(unit.getId(), unit);
+        publish();
+    }
+
+    public static synchronized void putAll(Collection<AdUnit> adUnits) {
+        if (!loaded) {
+            return;
+        }
+        for (AdUnit unit : adUnits) {
+            if (unit != null && unit.getId() != null) {
+                liveAdUnits.remove(unit.getId());
+                liveAdUnits.put(unit.getId(), unit);
+            }
+        }
+        publish();
+    }
+
+    public static synchronized void remove(String id) {
+        if (loaded && id != null && liveAdUnits.remove(id) != null) {
+            publish();
+        }
+    }
+
+    public static synchronized void clear() {
+        liveAdUnits.clear();
+        loaded = false;
+        snapshot = null;
+    }
+
+    private static void publish() {
+        snapshot = new Snapshot(liveAdUnits.values());
+        logger.debug("Ad eligibility index rebuilt with {} adunits", snapshot.units.length);
+    }
+
+    /**
+     * Returns the best scored eligible ads, at most one per campaign. Targeting rules and scores mirror the ES
+     * query built in {@link AdUnitProcessor#recommend}.
+     *
+     * @param sq            search query, lists are expected to be lowercased already
+     * @param hourOfWeek    hour of the week of the request, 0 being sunday midnight
+     * @param time          request time in epoch millis
+     * @param domain        second level domain of the request, may be null
+     * @param autoplayBoost weight applied to autoplay ads
+     * @param demoteSeen    rank the excluded video ids after the other ads instead of dropping them
+     * @param positions     max number of ads to return
+     * @return list of ads, never null
+     */
+    static List<AdUnitResponse> recommend(SearchQueryRequest sq, int hourOfWeek, long time, String domain,
+                                          float autoplayBoost, boolean demoteSeen, int positions) {
+        Snapshot s = snapshot;
+        List<AdUnitResponse> adUnitResponses = new ArrayList<>();
+        if (s == null || s.units.length == 0) {
+            return adUnitResponses;
+        }
+        boolean isWidget = equalsIgnoreCase(sq.getFormat(), INWIDGET.toString());
+
+        BitSet eligible = new BitSet(s.units.length);
+        eligible.set(0, s.units.length);
+        eligible.andNot(s.paused);
+        eligible.andNot(s.goalReached);
+        eligible.andNot(s.blockedHours[hourOfWeek]);
+
+        //do not target categories for widget format
+        if (!isWidget) {
+            eligible.and(s.union(s.categories, sq.getCategories()));
+            if (!isEmptyList(sq.getCategories())) {
+                eligible.andNot(s.union(s.excludedCategories, sq.getCategories()));
+            }
+        }
+        eligible.and(s.union(s.languages, sq.getLanguages()));
+        eligible.and(s.union(s.locations, sq.getLocations()));
+        eligible.and(s.union(s.devices, "all", lowerCase(sq.getDevice())));
+        eligible.and(s.union(s.formats, "all", lowerCase(sq.getFormat())));
+        if (!isEmptyList(sq.getLocations())) {
+            eligible.andNot(s.union(s.excludedLocations, sq.getLocations()));
+        }
+
+        if (isWidget && isNotBlank(domain)) {
+            //MUST show the ad if whitelist field is missing OR whitelist matches domain
+            BitSet whitelisted = (BitSet) s.hasWhitelist.clone();
+            whitelisted.andNot(s.get(s.domainWhitelist, domain));
+            eligible.andNot(whitelisted);
+            //MUST NOT show the ad if blacklist matches domain
+            eligible.andNot(s.get(s.domainBlacklist, domain));
+        } else if (isWidget) {
+            //if the domain is blank, then the white and blacklist must be missing for the ad to be shown
+            eligible.andNot(s.hasWhitelist);
+            eligible.andNot(s.hasBlacklist);
+        }
+
+        List<String> excludedAds = sq.getExcludedVideoIds();
+        BitSet seen = null;
+        if (!isEmptyList(excludedAds)) {
+            seen = s.union(s.videoIds, excludedAds);
+            if (!demoteSeen) {
+                eligible.andNot(seen);
+            }
+        }
+
+        for (int slot = eligible.nextSetBit(0); slot >= 0; slot = eligible.nextSetBit(slot + 1)) {
+            if (time < s.startDates[slot] || time > s.endDates[slot]) {
+                eligible.clear(slot);
+            }
+        }
+
+        int numEligible = eligible.cardinality();
+        if (numEligible == 0) {
+            return adUnitResponses;
+        }
+        // pack slot and score so that a single sort orders by score desc and then by slot asc
+        long[] candidates = new long[numEligible];
+        int n = 0;
+        for (int slot = eligible.nextSetBit(0); slot >= 0; slot = eligible.nextSetBit(slot + 1)) {
+            float score = s.staticScores[slot];
+            if (s.autoplay.get(slot)) {
+                score *= autoplayBoost;
+            }
+            long key = ((long) ~Float.floatToIntBits(Math.max(score, 0f)) << 32) | slot;
+            // keys are negative, clearing the sign bit sorts seen ads after all the unseen ones in the same order
+            candidates[n++] = seen != null && seen.get(slot) ? key & Long.MAX_VALUE : key;
+        }
+        Arrays.sort(candidates);
+
+        Set<String> campaigns = new HashSet<>();
+        for (long candidate : candidates) {
+            if (adUnitResponses.size() >= positions) {
+                break;
+            }
+            AdUnit unit = s.units[(int) candidate];
+            if (campaigns.add(unit.getCampaignId())) {
+                adUnitResponses.add(toAdUnitResponse(unit));
+            }
+        }
+        return adUnitResponses;
+    }
+
+    private static AdUnitResponse toAdUnitResponse(AdUnit unit) {
+        AdUnitResponse response = new AdUnitResponse();
+        response.setAd(unit.getAd());
+        response.setCampaignId(unit.getCampaignId());
+        response.setTacticId(unit.getTacticId());
+        response.setChannel(unit.getChannel());
+        response.setChannelName(unit.getChannelName());
+        response.setAccountId(unit.getAccountId());
+        response.setVideoId(unit.getVideoId());
+        response.setDescription(unit.getDescription());
+        response.setTitle(unit.getTitle());
+        response.setDuration(unit.getDuration());
+        response.setCpc(unit.getCpc());
+        response.setCpv(unit.getCpv());
+        response.setInternalCpv(unit.getInternaCpv());
+        response.setCurrency(unit.getCurrency());
+        if (unit.getAutoplay() != null) {
+            response.setAutoplay(unit.getAutoplay());
+        }
+        response.setResizableThumbnailUrl(unit.getResizableThumbnailUrl());
+        response.setCustomVideoUrl(unit.getCustomVideoUrl());
+        return response;
+    }
+
+    /**
+     * Request independent part of the ad score: ctr, minimum ctr boost and cpv functions.
+     */
+    static float getStaticScore(AdUnit unit) {
+        return (float) AdScoreScript.score(unit.getClicks(), unit.getViews(), unit.getImpressions(), unit.getInternaCpv(),
+                MIN_CTR_BOOST, CPV_WEIGHT);
+    }
+
+    private static final class Snapshot {
+        private static final BitSet EMPTY = new BitSet();
+
+        private final AdUnit[] units;
+        private final Map<String, BitSet> categories = new HashMap<>();
+        private final Map<String, BitSet> excludedCategories = new HashMap<>();
+        private final Map<String, BitSet> languages = new HashMap<>();
+        private final Map<String, BitSet> locations = new HashMap<>();
+        private final Map<String, BitSet> excludedLocations = new HashMap<>();
+        private final Map<String, BitSet> devices = new HashMap<>();
+        private final Map<String, BitSet> formats = new HashMap<>();
+        private final Map<String, BitSet> domainWhitelist = new HashMap<>();
+        private final Map<String, BitSet> domainBlacklist = new HashMap<>();
+        private final Map<String, BitSet> videoIds = new HashMap<>();
+        private final BitSet paused = new BitSet();
+        private final BitSet goalReached = new BitSet();
+        private final BitSet autoplay = new BitSet();
+        private final BitSet hasWhitelist = new BitSet();
+        private final BitSet hasBlacklist = new BitSet();
+        private final BitSet[] blockedHours = new BitSet[DAYS.length * HOURS_IN_DAY];
+        private final long[] startDates;
+        private final long[] endDates;
+        private final float[] staticScores;
+
+        private Snapshot(Collection<AdUnit> adUnits) {
+            units = adUnits.toArray(new AdUnit[adUnits.size()]);
+            startDates = new long[units.length];
+            endDates = new long[units.length];
+            staticScores = new float[units.length];
+            for (int hour = 0; hour < blockedHours.length; hour++) {
+                blockedHours[hour] = new BitSet();
+            }
+
+            for (int slot = 0; slot < units.length; slot++) {
+                AdUnit unit = units[slot];
+                add(categories, unit.getCategories(), slot);
+                add(excludedCategories, unit.getExcludedCategories(), slot);
+                add(languages, unit.getLanguages(), slot);
+                add(locations, unit.getLocations(), slot);
+                add(excludedLocations, unit.getExcludedLocations(), slot);
+                add(devices, unit.getDevices(), slot);
+                add(formats, unit.getFormats(), slot);
+                add(domainWhitelist, unit.getDomainWhitelist(), slot);
+                add(domainBlacklist, unit.getDomainBlacklist(), slot);
+                if (unit.getVideoId() != null) {
+                    add(videoIds, Arrays.asList(unit.getVideoId()), slot);
+                }
+                paused.set(slot, Boolean.TRUE.equals(unit.getPaused()));
+                autoplay.set(slot, Boolean.TRUE.equals(unit.getAutoplay()));
+                hasWhitelist.set(slot, !isEmptyList(unit.getDomainWhitelist()));
+                hasBlacklist.set(slot, !isEmptyList(unit.getDomainBlacklist()));
+                goalReached.set(slot, isGoalReached(unit));
+                // a missing date never matches the range filter in ES
+                startDates[slot] = unit.getStartDate() == null ? Long.MAX_VALUE : unit.getStartDate();
+                endDates[slot] = unit.getEndDate() == null ? Long.MIN_VALUE : unit.getEndDate();
+                if (unit.getBlockedHours() != null) {
+                    for (Integer hour : unit.getBlockedHours()) {
+                        if (hour != null && hour >= 0 && hour < blockedHours.length) {
+                            blockedHours[hour].set(slot);
+                        }
+                    }
+                }
+                staticScores[slot] = getStaticScore(unit);
+            }
+        }
+
+        private static void add(Map<String, BitSet> field, List<String> values, int slot) {
+            if (values == null) {
+                return;
+            }
+            for (String value : values) {
+                if (value == null) {
+                    continue;
+                }
+                BitSet bits = field.get(value);
+                if (bits == null) {
+                    bits = new BitSet();
+                    field.put(value, bits);
+                }
+                bits.set(slot);
+            }
+        }
+
+        private BitSet get(Map<String, BitSet> field, String value) {
+            BitSet bits = value == null ? null : field.get(value);
+            return bits == null ? EMPTY : bits;
+        }
+
+        private BitSet union(Map<String, BitSet> field, List<String> values) {
+            BitSet result = new BitSet(units.length);
+            if (values != null) {
+                for (String value : values) {
+                    result.or(get(field, value));
+                }
+            }
+            return result;
+        }
+
+        private BitSet union(Map<String, BitSet> field, String... values) {
+            return union(field, Arrays.asList(values));
+        }
+    }
+}
@@ -3,9 +3,14 @@ package com.dailymotion.pixelle.de.processor;
 import com.dailymotion.pixelle.de.model.AdUnit;
 import com.dailymotion.pixelle.de.model.AdUnitResponse;
 import com.dailymotion.pixelle.de.model.SearchQueryRequest;
+import com.dailymotion.pixelle.de.plugins.AdScoreScript;
+import com.dailymotion.pixelle.de.plugins.DemoteSeenScript;
+import com.dailymotion.pixelle.de.plugins.DocScoreScript;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 import com.google.inject.Inject;
+import com.netflix.config.DynamicBooleanProperty;
 import com.netflix.config.DynamicIntProperty;
 import com.netflix.config.DynamicStringProperty;
 import com.netflix.servo.DefaultMonitorRegistry;
@@ -18,18 +23,25 @@ import org.elasticsearch.action.bulk.BulkItemResponse;
 import org.elasticsearch.action.bulk.BulkRequestBuilder;
 import org.elasticsearch.action.bulk.BulkResponse;
 import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequestBuilder;
 import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.client.Client;
+import org.elasticsearch.common.lucene.search.function.CombineFunction;
 import org.elasticsearch.index.query.BoolFilterBuilder;
+import org.elasticsearch.index.query.FilterBuilder;
 import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
-import org.elasticsearch.index.query.functionscore.ScoreFunctionBuilder;
+import org.elasticsearch.index.query.functionscore.FunctionScoreQueryBuilder;
 import org.elasticsearch.index.query.functionscore.ScoreFunctionBuilders;
 import org.elasticsearch.search.SearchHit;
-import org.joda.time.DateTime;
-import org.joda.time.LocalDate;
-import org.joda.time.format.DateTimeFormatter;
+import org.elasticsearch.search.aggregations.bucket.missing.Missing;
+import org.elasticsearch.search.aggregations.bucket.missing.MissingBuilder;
+import org.elasticsearch.search.aggregations.bucket.terms.Terms;
+import org.elasticsearch.search.aggregations.bucket.terms.TermsBuilder;
+import org.elasticsearch.search.aggregations.metrics.max.Max;
+import org.elasticsearch.search.aggregations.metrics.tophits.TopHits;
 import org.slf4j.Logger;
 
 import java.io.IOException;
@@ -37,20 +49,33 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ScheduledExecutorService;
 
+import static com.dailymotion.pixelle.de.processor.DeHelper.DAYS;
+import static com.dailymotion.pixelle.de.processor.DeHelper.NATIVE_LANG;
 import static com.dailymotion.pixelle.de.processor.DeHelper.FORMAT.INWIDGET;
+import static com.dailymotion.pixelle.de.processor.DeHelper.HOURS_IN_DAY;
 import static com.dailymotion.pixelle.de.processor.DeHelper.adunitsType;
+import static com.dailymotion.pixelle.de.processor.DeHelper.ctrScore;
 import static com.dailymotion.pixelle.de.processor.DeHelper.currentUTCTime;
-import static com.dailymotion.pixelle.de.processor.DeHelper.getDateTimeFormatString;
 import static com.dailymotion.pixelle.de.processor.DeHelper.isEmptyList;
 import static com.dailymotion.pixelle.de.processor.DeHelper.promotedIndex;
+import static com.dailymotion.pixelle.de.processor.DeHelper.readSource;
 import static com.dailymotion.pixelle.de.processor.DeHelper.retryOnConflictAdUnits;
-import static com.dailymotion.pixelle.de.processor.DeHelper.timeToISO8601String;
+import static com.dailymotion.pixelle.de.processor.DeHelper.RANKING_NATIVE;
+import static com.dailymotion.pixelle.de.processor.DeHelper.RANKING_SCRIPTS;
+import static com.dailymotion.pixelle.de.processor.DeHelper.rankingMode;
+import static com.dailymotion.pixelle.de.processor.DeHelper.toEpochMillis;
+import static com.dailymotion.pixelle.de.processor.DeHelper.toHourOfWeek;
 import static com.dailymotion.pixelle.de.processor.DeHelper.toLowerCase;
 import static com.fasterxml.jackson.databind.DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES;
 import static com.netflix.config.DynamicPropertyFactory.getInstance;
 import static com.netflix.servo.monitor.MonitorConfig.builder;
+import static java.lang.Boolean.TRUE;
 import static java.util.Arrays.asList;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static org.apache.commons.lang3.StringUtils.equalsIgnoreCase;
 import static org.apache.commons.lang3.StringUtils.isBlank;
 import static org.apache.commons.lang3.StringUtils.isNotBlank;
@@ -70,9 +95,13 @@ import static org.elasticsearch.index.query.FilterBuilders.termFilter;
 import static org.elasticsearch.index.query.FilterBuilders.termsFilter;
 import static org.elasticsearch.index.query.QueryBuilders.filteredQuery;
 import static org.elasticsearch.index.query.QueryBuilders.matchAllQuery;
+import static org.elasticsearch.index.query.QueryBuilders.wrapperQuery;
 import static org.elasticsearch.index.query.functionscore.ScoreFunctionBuilders.fieldValueFactorFunction;
 import static org.elasticsearch.index.query.functionscore.ScoreFunctionBuilders.scriptFunction;
-import static org.joda.time.format.DateTimeFormat.forPattern;
+import static org.elasticsearch.search.aggregations.AggregationBuilders.max;
+import static org.elasticsearch.search.aggregations.AggregationBuilders.missing;
+import static org.elasticsearch.search.aggregations.AggregationBuilders.terms;
+import static org.elasticsearch.search.aggregations.AggregationBuilders.topHits;
 import static org.slf4j.LoggerFactory.getLogger;
 
 /**
@@ -80,72 +109,107 @@ import static org.slf4j.LoggerFactory.getLogger;
  */
 public class AdUnitProcessor {
     private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    private static final ObjectReader AD_UNIT_READER =
+            OBJECT_MAPPER.readerFor(AdUnit.class).without(FAIL_ON_UNKNOWN_PROPERTIES);
+    private static final ObjectReader AD_UNIT_RESPONSE_READER =
+            OBJECT_MAPPER.readerFor(AdUnitResponse.class).without(FAIL_ON_UNKNOWN_PROPERTIES);
     private static final Integer MAX_YEARS = 100;
     private static final String DEFAULT_CURRENCY = "USD";
-    private static final float MIN_CTR_BOOST = 3.583519f;
-    private static final float CPV_WEIGHT = 2.0f;
+    static final float MIN_CTR_BOOST = 3.583519f;
+    static final float CPV_WEIGHT = 2.0f;
 
-    private static final Integer SIZ_MULTIPLIER = 4;
+    private static final String CAMPAIGNS_AGG = "campaigns";
+    private static final String NO_CAMPAIGN_AGG = "no_campaign";
+    private static final String TOP_SCORE_AGG = "top_score";
+    private static final String TOP_AD_AGG = "top_ad";
     private static final Logger logger = getLogger(AdUnitProcessor.class);
     // JMX: com.netflix.servo.COUNTER.TotalAdsRequestsServed
     private static final Counter totalAdsRequestsServed = new BasicCounter(
             builder("TotalAdsRequestsServed").build());
+    // JMX: com.netflix.servo.COUNTER.InMemoryAdsQueries
+    private static final Counter inMemoryAdsQueries = new BasicCounter(
+            builder("InMemoryAdsQueries").build());
     private static final DynamicStringProperty ctrScriptFunction =
             getInstance().getStringProperty("ctr.script.code", "");
     private static final DynamicStringProperty ctrScriptLang =
             getInstance().getStringProperty("ctr.script.lang", "expression");
     private static final DynamicIntProperty STP_BOOST =
             getInstance().getIntProperty("stp.boost.percent", 75);
+    private static final DynamicBooleanProperty useInMemoryIndex =
+            getInstance().getBooleanProperty("adquery.inmemory.enabled", false);
+    private static final DynamicIntProperty inMemoryLoadRetryMillis =
+            getInstance().getIntProperty("adquery.inmemory.load.retry.ms", 30000);
+    // rank already seen ads after the unseen ones in the same query instead of excluding them and querying again
+    private static final DynamicBooleanProperty demoteSeenAds =
+            getInstance().getBooleanProperty("adquery.seen.demote", true);
+    private static final QuerySkeleton adQuery =
+            new QuerySkeleton(fb -> adScoringQuery(fb, 1), ctrScriptFunction, ctrScriptLang, rankingMode);
+    private static final QuerySkeleton stpBoostedAdQuery =
+            new QuerySkeleton(fb -> adScoringQuery(fb, STP_BOOST.getValue()), ctrScriptFunction, ctrScriptLang,
+                    rankingMode, STP_BOOST);
 
     private static Client client;
+    private static ScheduledExecutorService eligibilityLoader;
 
     static {
         OBJECT_MAPPER.configure(FAIL_ON_UNKNOWN_PROPERTIES, false);
         DefaultMonitorRegistry.getInstance().register(totalAdsRequestsServed);
+        DefaultMonitorRegistry.getInstance().register(inMemoryAdsQueries);
     }
 
     @Inject
     public AdUnitProcessor(Client esClient) {
         client = esClient;
+        if (!loadEligibilityIndex()) {
+            retryEligibilityIndexLoad();
+        }
     }
 
-    public static List<AdUnitResponse> recommend(SearchQueryRequest sq, Integer positions) throws DeException {
+    /*
+      the eligibility index only serves once fully loaded, the writes before are not published
+     */
+    private static boolean loadEligibilityIndex() {
+        try {
+            AdEligibilityIndex.rebuild(getAllAdUnits());
+            return true;
+        } catch (DeException | RuntimeException e) {
+            logger.error("Unable to load the ad eligibility index, ads will be served from ES until it is loaded", e);
+            AdEligibilityIndex.clear();
+            return false;
+        }
+    }
 
-        List<AdUnitResponse> adUnitResponses = null;
-        if (sq != null) {
-            DateTimeFormatter df = forPattern(getDateTimeFormatString());
-            //If withOffsetParsed() is not used then everything is converted to local time
-            //resulting in dayOfWeek and HourOfDay to be incorrect
-            DateTime dt = df.withOffsetParsed().parseDateTime(sq.getTime());
-            String timetable = dt.dayOfWeek().getAsText().toLowerCase() + ":" + dt.getHourOfDay() + ":" + "false";
-
-            BoolFilterBuilder fb = boolFilter();
-            fb.mustNot(termFilter("timetable", timetable));
-
-            //do not target categories for widget format
-            if (!equalsIgnoreCase(sq.getFormat(), INWIDGET.toString())) {
-                fb.must(termsFilter("categories", toLowerCase(sq.getCategories())));
-            }
-            fb.must(termsFilter("languages", toLowerCase(sq.getLanguages())));
-            fb.must(termsFilter("locations", toLowerCase(sq.getLocations())));
-            fb.mustNot(termFilter("paused", true));
-            fb.must(rangeFilter("start_date").lte(sq.getTime()));
-            fb.must(rangeFilter("end_date").gte(sq.getTime()));
-
-            if (isNotBlank(sq.getDevice())) {
-                fb.must(termsFilter("devices", "all", lowerCase(sq.getDevice())));
-            } else {
-                fb.must(termsFilter("devices", "all"));
-            }
-            if (isNotBlank(sq.getFormat())) {
-                fb.must(termsFilter("formats", "all", lowerCase(sq.getFormat())));
+    // retried in the background every adquery.inmemory.load.retry.ms until loaded
+    private static synchronized void retryEligibilityIndexLoad() {
+        if (eligibilityLoader == null) {
+            eligibilityLoader = newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "ad-eligibility-loader");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        eligibilityLoader.schedule(() -> {
+            if (loadEligibilityIndex()) {
+                stopEligibilityLoader();
             } else {
-                fb.must(termsFilter("formats", "all"));
-            }
-            if (!isEmptyList(sq.getLocations())) {
-                fb.mustNot(termsFilter("excluded_locations", toLowerCase(sq.getLocations())));
+                retryEligibilityIndexLoad();
             }
+        }, Math.max(inMemoryLoadRetryMillis.get(), 1000), MILLISECONDS);
+    }
 
+    private static synchronized void stopEligibilityLoader() {
+        if (eligibilityLoader != null) {
+            eligibilityLoader.shutdown();
+            eligibilityLoader = null;
+        }
+    }
+
+    public static List<AdUnitResponse> recommend(SearchQueryRequest sq, Integer positions) throws DeException {
+
+        List<AdUnitResponse> adUnitResponses = null;
+        if (sq != null) {
+            long time = toEpochMillis(sq.getTime());
+            int hourOfWeek = toHourOfWeek(sq.getTime());
 
             String[] levels = StringUtils.split(lowerCase(sq.getDomain()), ".");
             StringBuilder domainBuilder = new StringBuilder();
@@ -160,110 +224,217 @@ public class AdUnitProcessor {
                     domain = domainBuilder.toString();
                 }
             }
-            if (isNotBlank(domain) && equalsIgnoreCase(sq.getFormat(), INWIDGET.toString())) {
-                //MUST show the ad if whitelist field is missing OR whitelist matches domain
-                fb.must(orFilter(missingFilter("domain_whitelist"), termsFilter("domain_whitelist", domain)));
-                //MUST NOT show the ad if blacklist file is not missing and terms filter matches domain
-                fb.mustNot(andFilter(notFilter(missingFilter("domain_blacklist")), termsFilter
-                        ("domain_blacklist", domain)));
-            }
-            //this will never be true if we will always get the domain
-            //if the domain is blank, then the white and blacklist must be missing for the ad to be shown
-            if (isBlank(domain) && equalsIgnoreCase(sq.getFormat(), INWIDGET.toString())) {
-                fb.must(andFilter(missingFilter("domain_whitelist"), missingFilter("domain_blacklist")));
+            toLowerCase(sq.getCategories());
+            toLowerCase(sq.getLanguages());
+            toLowerCase(sq.getLocations());
+
+            boolean demoteSeen = demoteSeenAds.get();
+            boolean stpBoost = sq.getAutoplay() && equalsIgnoreCase(substring(sq.getPattern(), 0, 1), "P")
+                    && equalsIgnoreCase(INWIDGET.toString(), sq.getFormat());
+
+            //debug queries always go to ES so that the explanation is available
+            if (useInMemoryIndex.get() && !sq.isDebugEnabled() && AdEligibilityIndex.isReady()) {
+                adUnitResponses = AdEligibilityIndex.recommend(sq, hourOfWeek, time, domain,
+                        stpBoost ? STP_BOOST.getValue() : 1, demoteSeen, positions);
+                inMemoryAdsQueries.increment();
+            } else {
+                adUnitResponses = searchAdUnits(sq, hourOfWeek, time, domain, stpBoost, demoteSeen, positions);
             }
+            logger.info("Num responses: {}", adUnitResponses.size());
 
-            //do not target categories for widget format
-            if (!isEmptyList(sq.getCategories()) && !equalsIgnoreCase(sq.getFormat(), INWIDGET.toString())) {
-                fb.mustNot(termsFilter("excluded_categories", toLowerCase(sq.getCategories())));
+        }
+        if (isEmptyList(adUnitResponses)) {
+            //instead of returning no ads, return something even excluded-ad. Not needed when seen ads are only
+            //demoted, they are already part of the results
+            if (!isEmptyList(sq.getExcludedVideoIds()) && !demoteSeenAds.get()) {
+                sq.setExcludedVideoIds(null);
+                return recommend(sq, positions);
+            } else {
+                logger.debug("No ads returned =======> {}", sq);
             }
+
+        } else {
+            logger.debug("Success =======> {}", adUnitResponses);
+            totalAdsRequestsServed.increment();
+        }
+        return adUnitResponses;
+    }
+
+    private static List<AdUnitResponse> searchAdUnits(SearchQueryRequest sq, int hourOfWeek, long time, String domain,
+                                                      boolean stpBoost, boolean demoteSeen, Integer positions)
+            throws DeException {
+        BoolFilterBuilder fb = boolFilter();
+        fb.mustNot(termFilter("blocked_hours", hourOfWeek));
+
+        //do not target categories for widget format
+        if (!equalsIgnoreCase(sq.getFormat(), INWIDGET.toString())) {
+            fb.must(termsFilter("categories", sq.getCategories()));
+        }
+        fb.must(termsFilter("languages", sq.getLanguages()));
+        fb.must(termsFilter("locations", sq.getLocations()));
+        fb.mustNot(termFilter("paused", true));
+        fb.must(rangeFilter("start_date").lte(time));
+        fb.must(rangeFilter("end_date").gte(time));
+
+        if (isNotBlank(sq.getDevice())) {
+            fb.must(termsFilter("devices", "all", lowerCase(sq.getDevice())));
+        } else {
+            fb.must(termsFilter("devices", "all"));
+        }
+        if (isNotBlank(sq.getFormat())) {
+            fb.must(termsFilter("formats", "all", lowerCase(sq.getFormat())));
+        } else {
+            fb.must(termsFilter("formats", "all"));
+        }
+        if (!isEmptyList(sq.getLocations())) {
+            fb.mustNot(termsFilter("excluded_locations", sq.getLocations()));
+        }
+
+        if (isNotBlank(domain) && equalsIgnoreCase(sq.getFormat(), INWIDGET.toString())) {
+            //MUST show the ad if whitelist field is missing OR whitelist matches domain
+            fb.must(orFilter(missingFilter("domain_whitelist"), termsFilter("domain_whitelist", domain)));
+            //MUST NOT show the ad if blacklist file is not missing and terms filter matches domain
+            fb.mustNot(andFilter(notFilter(missingFilter("domain_blacklist")), termsFilter
+                    ("domain_blacklist", domain)));
+        }
+        //this will never be true if we will always get the domain
+        //if the domain is blank, then the white and blacklist must be missing for the ad to be shown
+        if (isBlank(domain) && equalsIgnoreCase(sq.getFormat(), INWIDGET.toString())) {
+            fb.must(andFilter(missingFilter("domain_whitelist"), missingFilter("domain_blacklist")));
+        }
+
+        //do not target categories for widget format
+        if (!isEmptyList(sq.getCategories()) && !equalsIgnoreCase(sq.getFormat(), INWIDGET.toString())) {
+            fb.mustNot(termsFilter("excluded_categories", sq.getCategories()));
+        }
+        if (RANKING_SCRIPTS.equals(rankingMode.get())) {
             fb.must(orFilter(missingFilter("goal_views"),
                     missingFilter("views"),
                     scriptFilter("doc['views'].value < doc['goal_views'].value").lang("expression")));
+        } else {
+            fb.mustNot(termFilter("goal_reached", true));
+        }
 
 
-            ScoreFunctionBuilder sfb = ScoreFunctionBuilders.weightFactorFunction(1);
-            if (sq.getAutoplay() && equalsIgnoreCase(substring(sq.getPattern(), 0, 1), "P") && equalsIgnoreCase
-                    (INWIDGET.toString(), sq.getFormat())) {
-                sfb = ScoreFunctionBuilders.weightFactorFunction(STP_BOOST.getValue());
-            }
+        List<String> excludedAds = sq.getExcludedVideoIds();
+        if (!isEmptyList(excludedAds) && !demoteSeen) {
+            fb.mustNot(termsFilter("video_id", excludedAds));
+        }
 
+        String query = (stpBoost ? stpBoostedAdQuery : adQuery).render(fb);
+        QueryBuilder qb = wrapperQuery(query);
+        if (!isEmptyList(excludedAds) && demoteSeen) {
+            qb = QueryBuilders.functionScoreQuery(qb)
+                    .add(scriptFunction(DemoteSeenScript.NAME).lang(NATIVE_LANG)
+                            .param(DemoteSeenScript.VIDEO_IDS, excludedAds))
+                    .boostMode(CombineFunction.REPLACE);
+        }
+        SearchRequestBuilder srb1 = client.prepareSearch(promotedIndex.get())
+                .setTypes(adunitsType.get())
+                .setSearchType(QUERY_AND_FETCH)
+                .setQuery(qb)
+                .setSize(0)
+                .addAggregation(bestAdPerCampaign(positions, sq.isDebugEnabled()))
+                .addAggregation(bestAdWithoutCampaign(sq.isDebugEnabled()));
 
-            QueryBuilder qb = QueryBuilders.functionScoreQuery(fb)
-                    .add(termFilter("autoplay", true), sfb)
-                    .add(andFilter(rangeFilter("clicks").from(0), rangeFilter("impressions").from(0)),
-                            scriptFunction(ctrScriptFunction.getValue()).lang(ctrScriptLang.getValue()))
-                            //use a default boost equivalent to 100% ctr if adunit was created less than a day from now
-                    .add(orFilter(missingFilter("clicks"), missingFilter("views"), missingFilter("impressions"),
-                                    rangeFilter("clicks").lt(1000),
-                                    rangeFilter("views").lt(500),
-                                    rangeFilter("impressions").lt(10000)),
-                            ScoreFunctionBuilders.weightFactorFunction(MIN_CTR_BOOST))
-                    .add(notFilter(missingFilter("internal_cpv")), fieldValueFactorFunction("internal_cpv").setWeight
-                            (CPV_WEIGHT));
-
-
-            List<String> excludedAds = sq.getExcludedVideoIds();
-            if (!isEmptyList(excludedAds)) {
-                for (String id : excludedAds) {
-                    fb.mustNot(termsFilter("video_id", id));
+        logger.debug(query);
+        SearchResponse searchResponse;
+        try {
+            searchResponse = srb1.execute().actionGet();
+        } catch (ElasticsearchException e) {
+            throw new DeException(e, INTERNAL_SERVER_ERROR_500);
+        }
+        List<SearchHit> hits = new ArrayList<>();
+        Terms campaigns = searchResponse.getAggregations().get(CAMPAIGNS_AGG);
+        for (Terms.Bucket campaign : campaigns.getBuckets()) {
+            TopHits topAd = campaign.getAggregations().get(TOP_AD_AGG);
+            hits.add(topAd.getHits().getAt(0));
+        }
+        // ads without a campaign count as one more campaign, ranked by their best ad
+        Missing noCampaign = searchResponse.getAggregations().get(NO_CAMPAIGN_AGG);
+        if (noCampaign.getDocCount() > 0) {
+            Max topScore = noCampaign.getAggregations().get(TOP_SCORE_AGG);
+            int rank = 0;
+            for (Terms.Bucket campaign : campaigns.getBuckets()) {
+                Max campaignScore = campaign.getAggregations().get(TOP_SCORE_AGG);
+                if (campaignScore.getValue() < topScore.getValue()) {
+                    break;
                 }
+                rank++;
             }
-
-            SearchRequestBuilder srb1 = client.prepareSearch(promotedIndex.get())
-                    .setTypes(adunitsType.get())
-                    .setSearchType(QUERY_AND_FETCH)
-                    .setQuery(qb)
-                    .setSize(positions * SIZ_MULTIPLIER);
-
-            if (sq.isDebugEnabled()) {
-                srb1.setExplain(true);
+            if (rank < positions) {
+                TopHits topAd = noCampaign.getAggregations().get(TOP_AD_AGG);
+                hits.add(rank, topAd.getHits().getAt(0));
             }
+        }
 
-            logger.info(srb1.toString());
-            SearchResponse searchResponse;
+        List<AdUnitResponse> adUnitResponses = new ArrayList<>();
+        for (SearchHit hit : hits.subList(0, Math.min(hits.size(), positions))) {
             try {
-                searchResponse = srb1.execute().actionGet();
-            } catch (ElasticsearchException e) {
-                throw new DeException(e, INTERNAL_SERVER_ERROR_500);
-            }
-            adUnitResponses = new ArrayList<>();
-
-            for (SearchHit hit : searchResponse.getHits().getHits()) {
-                try {
-                    AdUnitResponse unit = OBJECT_MAPPER.readValue(hit.getSourceAsString(), AdUnitResponse.class);
-                    if (sq.isDebugEnabled()) {
-                        Explanation ex = new Explanation();
-                        ex.setValue(hit.getScore());
-                        ex.setDescription("Source ====>" + hit.getSourceAsString());
-                        ex.addDetail(hit.explanation());
-                        unit.setDebugInfo(ex.toHtml().replace("\n", ""));
-                        logger.info(ex.toString());
-                    }
-                    adUnitResponses.add(unit);
-                } catch (IOException e) {
-                    throw new DeException(e, INTERNAL_SERVER_ERROR_500);
+                AdUnitResponse unit = readSource(AD_UNIT_RESPONSE_READER, hit.sourceRef());
+                if (sq.isDebugEnabled()) {
+                    Explanation ex = new Explanation();
+                    ex.setValue(hit.getScore());
+                    ex.setDescription("Source ====>" + hit.getSourceAsString());
+                    ex.addDetail(hit.explanation());
+                    unit.setDebugInfo(ex.toHtml().replace("\n", ""));
+                    logger.info("{}", ex);
                 }
+                adUnitResponses.add(unit);
+            } catch (IOException e) {
+                throw new DeException(e, INTERNAL_SERVER_ERROR_500);
             }
-            //Remove duplicate campaigns
-            adUnitResponses = removeDuplicateCampaigns(positions, adUnitResponses);
-            logger.info("Num responses:" + adUnitResponses.size());
-
         }
-        if (isEmptyList(adUnitResponses)) {
-            //instead of returning no ads, return something even excluded-ad
-            if (!isEmptyList(sq.getExcludedVideoIds())) {
-                sq.setExcludedVideoIds(null);
-                return recommend(sq, positions);
-            } else {
-                logger.info("No ads returned =======> " + sq.toString());
-            }
+        return adUnitResponses;
+    }
+
+    /*
+      one bucket per campaign holding its best ad, buckets ordered by that ad's score. The promoted index has a
+      single shard so the top campaigns are exact.
+     */
+    private static TermsBuilder bestAdPerCampaign(int positions, boolean explain) {
+        return terms(CAMPAIGNS_AGG).field("campaign")
+                .size(positions)
+                .order(Terms.Order.aggregation(TOP_SCORE_AGG, false))
+                .subAggregation(max(TOP_SCORE_AGG).script(DocScoreScript.NAME).lang(NATIVE_LANG))
+                .subAggregation(topHits(TOP_AD_AGG).setSize(1).setExplain(explain)
+                        .setFetchSource(AdUnitResponse.SOURCE_FIELDS, null));
+    }
+
+    /*
+      the best ad of the ones without a campaign, which the terms aggregation leaves out
+     */
+    private static MissingBuilder bestAdWithoutCampaign(boolean explain) {
+        return missing(NO_CAMPAIGN_AGG).field("campaign")
+                .subAggregation(max(TOP_SCORE_AGG).script(DocScoreScript.NAME).lang(NATIVE_LANG))
+                .subAggregation(topHits(TOP_AD_AGG).setSize(1).setExplain(explain)
+                        .setFetchSource(AdUnitResponse.SOURCE_FIELDS, null));
+    }
 
+    private static QueryBuilder adScoringQuery(FilterBuilder fb, float autoplayBoost) {
+        if (RANKING_NATIVE.equals(rankingMode.get())) {
+            return QueryBuilders.functionScoreQuery(fb)
+                    .add(scriptFunction(AdScoreScript.NAME).lang(NATIVE_LANG)
+                            .param(AdScoreScript.AUTOPLAY_BOOST, autoplayBoost)
+                            .param(AdScoreScript.MIN_CTR_BOOST, MIN_CTR_BOOST)
+                            .param(AdScoreScript.CPV_WEIGHT, CPV_WEIGHT));
+        }
+        FunctionScoreQueryBuilder qb = QueryBuilders.functionScoreQuery(fb)
+                .add(termFilter("autoplay", true), ScoreFunctionBuilders.weightFactorFunction(autoplayBoost));
+        if (RANKING_SCRIPTS.equals(rankingMode.get())) {
+            qb.add(andFilter(rangeFilter("clicks").from(0), rangeFilter("impressions").from(0)),
+                    scriptFunction(ctrScriptFunction.getValue()).lang(ctrScriptLang.getValue()));
         } else {
-            logger.info("Success =======> " + (adUnitResponses != null ? adUnitResponses.toString() : null));
-            totalAdsRequestsServed.increment();
+            qb.add(notFilter(missingFilter("ctr_score")), fieldValueFactorFunction("ctr_score"));
         }
-        return adUnitResponses;
+        //use a default boost equivalent to 100% ctr if adunit was created less than a day from now
+        return qb.add(orFilter(missingFilter("clicks"), missingFilter("views"), missingFilter("impressions"),
+                        rangeFilter("clicks").lt(1000),
+                        rangeFilter("views").lt(500),
+                        rangeFilter("impressions").lt(10000)),
+                ScoreFunctionBuilders.weightFactorFunction(MIN_CTR_BOOST))
+                .add(notFilter(missingFilter("internal_cpv")), fieldValueFactorFunction("internal_cpv").setWeight
+                        (CPV_WEIGHT));
     }
 
     public static List<AdUnit> getAdUnitsByCampaign(String cid) throws DeException {
@@ -281,7 +452,7 @@ public class AdUnitProcessor {
         for (SearchHit hit : searchResponse.getHits().getHits()) {
             AdUnit unit;
             try {
-                unit = OBJECT_MAPPER.readValue(hit.getSourceAsString(), AdUnit.class);
+                unit = readSource(AD_UNIT_READER, hit.sourceRef());
             } catch (IOException e) {
                 throw new DeException(e.getCause(), INTERNAL_SERVER_ERROR_500);
             }
@@ -318,12 +489,7 @@ public class AdUnitProcessor {
             unit.setFormats(asList("all"));
         }
 
-        List<String> sch = convertSchedulesToTimeTable(unit.getSchedules());
-
-        if (isEmptyList(sch)) {
-            unit.setTimetable(new ArrayList<String>(asList("all")));
-        }
-        unit.setTimetable(sch);
+        unit.setBlockedHours(convertSchedulesToBlockedHours(unit.getSchedules()));
         unit.setSchedules(null);
         if (unit.getCpc() == null || unit.getCpc() == 0) {
             unit.setCpc(0L);
@@ -333,11 +499,11 @@ public class AdUnitProcessor {
             unit.setCurrency(DEFAULT_CURRENCY);
         }
 
-        if (isBlank(unit.getStartDate())) {
-            unit.setStartDate(timeToISO8601String(currentUTCTime()));
+        if (unit.getStartDate() == null) {
+            unit.setStartDate(currentUTCTime().getMillis());
         }
-        if (isBlank(unit.getEndDate())) {
-            unit.setEndDate(timeToISO8601String(currentUTCTime().plusYears(MAX_YEARS)));
+        if (unit.getEndDate() == null) {
+            unit.setEndDate(currentUTCTime().plusYears(MAX_YEARS).getMillis());
         }
 
         unit.setCategories(toLowerCase(unit.getCategories()));
@@ -347,6 +513,7 @@ public class AdUnitProcessor {
         unit.setFormats(toLowerCase(unit.getFormats()));
         unit.setLanguages(toLowerCase(unit.getLanguages()));
         unit.setLocations(toLowerCase(unit.getLocations()));
+        applyDerivedFields(unit);
 
         return unit;
     }
@@ -367,6 +534,7 @@ public class AdUnitProcessor {
         } catch (ElasticsearchException e) {
             throw new DeException(e, INTERNAL_SERVER_ERROR_500);
         }
+        syncEligibilityIndex(asList(unit.getId()));
     }
 
     public static void insertAdUnitsInBulk(List<AdUnit> adUnits) throws DeException {
@@ -380,7 +548,7 @@ public class AdUnitProcessor {
 
         for (AdUnit adUnit : adUnits) {
             adUnit = modifyAdUnitForInsert(adUnit);
-            logger.info("Loading adunit" + adUnit.toString());
+            logger.debug("Loading adunit {}", adUnit);
             try {
                 bulkRequest.add(client.prepareUpdate(promotedIndex.get(), adunitsType.get(), adUnit.getId())
                         .setDoc(OBJECT_MAPPER.writeValueAsString(adUnit))
@@ -399,6 +567,11 @@ public class AdUnitProcessor {
             } catch (ElasticsearchException e) {
                 throw new DeException(e, INTERNAL_SERVER_ERROR_500);
             }
+            List<String> ids = new ArrayList<>();
+            for (AdUnit adUnit : adUnits) {
+                ids.add(adUnit.getId());
+            }
+            syncEligibilityIndex(ids);
             if (bulkResponse != null && bulkResponse.hasFailures()) {
                 logger.error("Error Bulk loading:" + adUnits.size() + " adUnits");
                 while (bulkResponse.iterator().hasNext()) {
@@ -419,10 +592,9 @@ public class AdUnitProcessor {
         }
         GetResponse response = client.prepareGet(promotedIndex.get(), adunitsType.get(), id).execute().actionGet();
         AdUnit unit = null;
-        byte[] responseSourceAsBytes = response.getSourceAsBytes();
-        if (responseSourceAsBytes != null) {
+        if (!response.isSourceEmpty()) {
             try {
-                unit = OBJECT_MAPPER.readValue(responseSourceAsBytes, AdUnit.class);
+                unit = readSource(AD_UNIT_READER, response.getSourceAsBytesRef());
             } catch (IOException e) {
                 logger.error("error parsing adunit", e);
                 throw new DeException(e, INTERNAL_SERVER_ERROR_500);
@@ -446,7 +618,7 @@ public class AdUnitProcessor {
         for (SearchHit hit : searchResponse.getHits().getHits()) {
             AdUnit unit;
             try {
-                unit = OBJECT_MAPPER.readValue(hit.getSourceAsString(), AdUnit.class);
+                unit = readSource(AD_UNIT_READER, hit.sourceRef());
             } catch (IOException e) {
                 throw new DeException(e.getCause(), INTERNAL_SERVER_ERROR_500);
             }
@@ -458,50 +630,100 @@ public class AdUnitProcessor {
         return adUnits;
     }
 
-    private static List<AdUnitResponse> removeDuplicateCampaigns(int positions, List<AdUnitResponse> units) {
-        int count = 1;
-        Map<String, Integer> m = new HashMap<>();
-        List<AdUnitResponse> uniqueAds = new ArrayList<>();
-
-        for (AdUnitResponse unit : units) {
-            if (count > positions) {
-                break;
+    /**
+     * Reads back the merged documents (partial updates only carry the changed fields), fixes their derived fields
+     * and applies them to the in-memory eligibility index.
+     */
+    private static void syncEligibilityIndex(List<String> ids) throws DeException {
+        MultiGetRequestBuilder mgrb = client.prepareMultiGet();
+        for (String id : ids) {
+            mgrb.add(promotedIndex.get(), adunitsType.get(), id);
+        }
+        List<AdUnit> adUnits = new ArrayList<>();
+        BulkRequestBuilder derivedFieldsUpdates = client.prepareBulk();
+        try {
+            for (MultiGetItemResponse item : mgrb.execute().actionGet()) {
+                if (item.isFailed()) {
+                    continue;
+                }
+                if (item.getResponse().isExists()) {
+                    AdUnit unit = readSource(AD_UNIT_READER, item.getResponse().getSourceAsBytesRef());
+                    if (applyDerivedFields(unit)) {
+                        Map<String, Object> doc = new HashMap<>();
+                        doc.put("goal_reached", unit.getGoalReached());
+                        doc.put("ctr_score", unit.getCtrScore());
+                        derivedFieldsUpdates.add(client.prepareUpdate(promotedIndex.get(), adunitsType.get(), unit.getId())
+                                .setDoc(doc)
+                                .setRetryOnConflict(retryOnConflictAdUnits.get()));
+                    }
+                    adUnits.add(unit);
+                } else {
+                    AdEligibilityIndex.remove(item.getId());
+                }
             }
-            if (!m.containsKey(unit.getCampaignId())) {
-                m.put(unit.getCampaignId(), 1);
-                uniqueAds.add(unit);
-                count++;
+            if (derivedFieldsUpdates.numberOfActions() > 0 && derivedFieldsUpdates.execute().actionGet().hasFailures()) {
+                logger.error("Error updating derived fields of adunits: " + ids);
             }
+        } catch (IOException | ElasticsearchException e) {
+            throw new DeException(e, INTERNAL_SERVER_ERROR_500);
         }
-        return uniqueAds;
+        AdEligibilityIndex.putAll(adUnits);
     }
 
-    private static Boolean isHourSet(int hour, int mask) {
-        return (mask & (1 << hour)) > 0;
+    /**
+     * Adds clicks, views and impressions deltas to the ad units and refreshes them in the eligibility index.
+     *
+     * @return deltas that were not applied
+     */
+    static Map<String, long[]> incrementCounters(Map<String, long[]> deltas) {
+        List<String> updated = new ArrayList<>();
+        Map<String, long[]> failed = EngagementCounters.bulkIncrement(client, promotedIndex.get(), adunitsType.get(),
+                deltas, retryOnConflictAdUnits.get(), updated);
+        if (!updated.isEmpty()) {
+            // the counters are applied, a failed sync must not retry them
+            try {
+                syncEligibilityIndex(updated);
+            } catch (DeException | RuntimeException e) {
+                logger.error("Could not refresh the eligibility of ad units " + updated
+                        + ", they are refreshed by their next engagement flush", e);
+            }
+        }
+        return failed;
     }
 
-    private static List<String> convertSchedulesToTimeTable(Integer[] schedules) {
-        String day;
-        Boolean hourSet;
-        List<String> timeTable = null;
-        if (schedules != null && schedules.length > 0) {
-            timeTable = new ArrayList<>();
-            for (int i = 0; i < 7; i++) {
-                LocalDate date = new LocalDate();
-                if (i == 0) {
-                    date = date.withDayOfWeek(7);
-                } else {
-                    date = date.withDayOfWeek(i);
-                }
-                day = date.dayOfWeek().getAsText().toLowerCase();
-                for (int j = 0; j < 24; j++) {
-                    hourSet = isHourSet(j, schedules[i]);
-                    if (!hourSet) {
-                        timeTable.add(day + ":" + j + ":" + hourSet.toString());
+    static boolean isGoalReached(AdUnit unit) {
+        return unit.getGoalViews() != null && unit.getViews() != null && unit.getViews() >= unit.getGoalViews();
+    }
+
+    /**
+     * Sets the fields used for ranking instead of query time scripts.
+     *
+     * @return true if any of them changed
+     */
+    private static boolean applyDerivedFields(AdUnit unit) {
+        boolean goalReached = isGoalReached(unit);
+        Float ctrScore = ctrScore(unit.getClicks(), unit.getImpressions());
+        //a missing goal_reached is the same as false for the goal filter
+        boolean changed = goalReached != TRUE.equals(unit.getGoalReached()) || !Objects.equals(ctrScore, unit.getCtrScore());
+        unit.setGoalReached(goalReached);
+        unit.setCtrScore(ctrScore);
+        return changed;
+    }
+
+    /*
+      schedules holds one 24 bit hour mask per day, starting on sunday, a missing day runs all day
+     */
+    private static List<Integer> convertSchedulesToBlockedHours(Integer[] schedules) {
+        List<Integer> blockedHours = new ArrayList<>();
+        if (schedules != null) {
+            for (int day = 0; day < DAYS.length && day < schedules.length; day++) {
+                for (int hour = 0; schedules[day] != null && hour < HOURS_IN_DAY; hour++) {
+                    if ((schedules[day] & (1 << hour)) == 0) {
+                        blockedHours.add(day * HOURS_IN_DAY + hour);
                     }
                 }
             }
         }
-        return timeTable;
+        return blockedHours;
     }
 }
@@ -3,30 +3,56 @@ package com.dailymotion.pixelle.de.processor;
 import com.dailymotion.pixelle.common.services.CacheService;
 import com.dailymotion.pixelle.de.model.SearchQueryRequest;
 import com.dailymotion.pixelle.de.model.Video;
+import com.dailymotion.pixelle.de.model.VideoGroupKey;
 import com.dailymotion.pixelle.de.model.VideoResponse;
 import com.dailymotion.pixelle.de.processor.hystrix.ChannelVideoBulkInsertCommand;
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.inject.Inject;
 import com.netflix.config.DynamicBooleanProperty;
 import com.netflix.config.DynamicIntProperty;
+import com.netflix.config.DynamicLongProperty;
 import com.netflix.config.DynamicStringProperty;
 import org.apache.commons.lang3.StringUtils;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.client.Client;
+import org.elasticsearch.search.SearchHit;
 import org.joda.time.DateTime;
 import org.joda.time.format.DateTimeFormatter;
 import org.slf4j.Logger;
 
 import javax.annotation.Nullable;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
+import static com.dailymotion.pixelle.de.processor.DeHelper.channelIndex;
 import static com.dailymotion.pixelle.de.processor.DeHelper.domain;
 import static com.dailymotion.pixelle.de.processor.DeHelper.getDateTimeFormatString;
 import static com.dailymotion.pixelle.de.processor.DeHelper.isEmptyList;
+import static com.dailymotion.pixelle.de.processor.DeHelper.videosType;
 import static com.fasterxml.jackson.databind.DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES;
+import static com.google.common.base.Charsets.UTF_8;
+import static com.google.common.hash.Hashing.sha1;
 import static com.netflix.config.DynamicPropertyFactory.getInstance;
+import static java.lang.System.currentTimeMillis;
 import static org.apache.commons.lang3.StringUtils.isBlank;
 import static org.apache.commons.lang3.StringUtils.lowerCase;
+import static org.eclipse.jetty.http.HttpStatus.INTERNAL_SERVER_ERROR_500;
+import static org.elasticsearch.index.query.FilterBuilders.boolFilter;
+import static org.elasticsearch.index.query.FilterBuilders.rangeFilter;
+import static org.elasticsearch.index.query.FilterBuilders.termFilter;
+import static org.elasticsearch.index.query.QueryBuilders.filteredQuery;
+import static org.elasticsearch.index.query.QueryBuilders.matchAllQuery;
+import static org.elasticsearch.search.sort.SortOrder.ASC;
+import static org.elasticsearch.search.sort.SortOrder.DESC;
 import static org.joda.time.format.DateTimeFormat.forPattern;
 import static org.slf4j.LoggerFactory.getLogger;
 
@@ -41,6 +67,14 @@ public class ChannelProcessor extends VideoProcessor {
     private static final DynamicBooleanProperty persistChanneltoES = getInstance().getBooleanProperty("pixelle.channel.es.store", false);
     private static final DynamicIntProperty maxVideosToCache = getInstance().getIntProperty("pixelle.channel" +
             ".maxVideosToCache", 25);
+    private static final DynamicLongProperty storedMaxAgeMillis =
+            getInstance().getLongProperty("pixelle.channel.es.max.age.ms", 300000);
+    // channel index fields of a stored group of videos
+    private static final String GROUP = "group";
+    private static final String RANK = "rank";
+    private static final String FETCHED_TIME = "fetched_time";
+    private static final String CREATED_TIME = "created_time";
+    private static final String RECENT = "recent";
     private static final Logger logger = getLogger(ChannelProcessor.class);
 
     static {
@@ -56,8 +90,9 @@ public class ChannelProcessor extends VideoProcessor {
         String sortOrder = lowerCase(sq.getSortOrder());
 
         if (isBlank(sortOrder) || !listOfValidSortOrders.get().contains(sortOrder)) {
-            sq.setSortOrder("recent"); //default to recent when provided invalid sort order
-            logger.info("Invalid sort order provided, defaulting to 'recent' sort order: ", sq.toString());
+            sortOrder = RECENT;
+            sq.setSortOrder(sortOrder); //default to recent when provided invalid sort order
+            logger.debug("Invalid sort order provided, defaulting to 'recent' sort order: {}", sq);
         }
         /*
          * If videoCache is empty, it is loaded with data from DM - this happens during cold start.
@@ -67,15 +102,94 @@ public class ChannelProcessor extends VideoProcessor {
          */
         logger.info("getting videos from cache");
 
-        List<VideoResponse> videos = CacheService.getVideos(sq, sortOrder);
+        List<VideoGroupKey> keys = groupKeys(sq, sortOrder);
+        List<List<VideoResponse>> lists = CacheService.getGroupVideos(keys);
+        List<VideoResponse> videos = lists.size() == 1 ? lists.get(0) : mergeChannelVideos(lists, sortOrder, positions);
         if (videos != null && videos.size() > positions) {
             videos = videos.subList(0, positions);
         }
 
-        logger.info("Num video responses:" + videos.size());
+        logger.info("Num video responses: {}", videos.size());
         return videos;
     }
 
+    /*
+      videos are cached per channel, a widget of several channels shares the entries of each of them with the other
+      widgets. The DM API ignores the playlist when channels are given.
+     */
+    static List<VideoGroupKey> groupKeys(SearchQueryRequest sq, String sortOrder) {
+        List<VideoGroupKey> keys = new ArrayList<>();
+        if (isEmptyList(sq.getChannels())) {
+            keys.add(new VideoGroupKey(null, sq.getPlaylist(), sortOrder));
+        } else {
+            for (String channel : new LinkedHashSet<>(sq.getChannels())) {
+                keys.add(new VideoGroupKey(channel, null, sortOrder));
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * k-way merge of the videos of several channels, each in the sort order. Recent videos are merged by creation
+     * time as the DM API does for several owners. The DM API gives no per video value for the other sort orders,
+     * their videos are interleaved by rank. Ties go to the channel requested first.
+     *
+     * @param lists videos of each channel, in the requested channel order
+     * @param size  max number of videos
+     */
+    public static List<VideoResponse> mergeChannelVideos(List<List<VideoResponse>> lists, String sortOrder, int size) {
+        boolean byCreatedTime = RECENT.equals(sortOrder);
+        int[] next = new int[lists.size()];
+        List<VideoResponse> merged = new ArrayList<>(size);
+        while (merged.size() < size) {
+            int best = -1;
+            for (int i = 0; i < next.length; i++) {
+                List<VideoResponse> list = lists.get(i);
+                if (list == null || next[i] == list.size()) {
+                    continue;
+                }
+                if (best < 0 || (byCreatedTime
+                        ? createdTime(list.get(next[i])) > createdTime(lists.get(best).get(next[best]))
+                        : next[i] < next[best])) {
+                    best = i;
+                }
+            }
+            if (best < 0) {
+                break;
+            }
+            merged.add(lists.get(best).get(next[best]++));
+        }
+        return merged;
+    }
+
+    private static long createdTime(VideoResponse video) {
+        return video.getCreatedTime() == null ? Long.MIN_VALUE : video.getCreatedTime();
+    }
+
+    /**
+     * Adds the videos created since the last sync of a group to its recent videos, keeping as many as a full fetch.
+     *
+     * @param created videos created since the last sync, most recent first
+     * @param videos  recent videos of the last sync
+     */
+    public static List<VideoResponse> mergeCreatedVideos(List<VideoResponse> created, List<VideoResponse> videos) {
+        Set<String> createdIds = new HashSet<>();
+        for (VideoResponse video : created) {
+            createdIds.add(video.getVideoId());
+        }
+        List<VideoResponse> kept = new ArrayList<>(videos.size());
+        for (VideoResponse video : videos) {
+            if (!createdIds.contains(video.getVideoId())) {
+                kept.add(video);
+            }
+        }
+        List<List<VideoResponse>> lists = new ArrayList<>(2);
+        lists.add(created);
+        lists.add(kept);
+        // getFilteredVideos keeps maxVideosToCache - 1 videos
+        return mergeChannelVideos(lists, RECENT, maxVideosToCache.get() - 1);
+    }
+
     @Nullable
     private static String getResizableThumbnailUrl(@Nullable String thumbnailUrl) {
         if (isBlank(thumbnailUrl)) {
@@ -90,10 +204,98 @@ public class ChannelProcessor extends VideoProcessor {
         return "//i.".concat(domain.get()).concat("/channel-").concat(id).concat("-thumbnail-1");
     }
 
-    public static void submitAsyncIndexingTask(final List<Video> videos) {
+    /**
+     * Stores the videos of the group in the channel index, when pixelle.channel.es.store is on.
+     */
+    public static void submitAsyncIndexingTask(final VideoGroupKey key, final List<VideoResponse> videos) {
         if (!isEmptyList(videos) && persistChanneltoES.get()) {
-            new ChannelVideoBulkInsertCommand(videos).queue();
+            new ChannelVideoBulkInsertCommand(key, videos).queue();
+        }
+    }
+
+    /**
+     * Indexes the videos of the group, in their order, as one batch replacing the previous ones.
+     */
+    public static void insertGroupVideosInBulk(VideoGroupKey key, List<VideoResponse> videos) throws DeException {
+        if (isEmptyList(videos)) {
+            return;
+        }
+        String group = groupId(key);
+        long fetchedTime = currentTimeMillis();
+        BulkRequestBuilder bulkRequest = client.prepareBulk();
+        for (int rank = 0; rank < videos.size(); rank++) {
+            VideoResponse video = videos.get(rank);
+            ObjectNode doc = OBJECT_MAPPER.valueToTree(video);
+            doc.put(GROUP, group).put(RANK, rank).put(FETCHED_TIME, fetchedTime);
+            if (video.getCreatedTime() != null) {
+                doc.put(CREATED_TIME, video.getCreatedTime());
+            }
+            try {
+                bulkRequest.add(client.prepareIndex(channelIndex.get(), videosType.get(), group + "_" + video.getVideoId())
+                        .setSource(OBJECT_MAPPER.writeValueAsBytes(doc)));
+            } catch (JsonProcessingException e) {
+                logger.error("Error converting video to string", e);
+                throw new DeException(e, INTERNAL_SERVER_ERROR_500);
+            }
+        }
+        BulkResponse bulkResponse;
+        try {
+            bulkResponse = bulkRequest.execute().actionGet();
+        } catch (ElasticsearchException e) {
+            throw new DeException(e, INTERNAL_SERVER_ERROR_500);
+        }
+        if (bulkResponse.hasFailures()) {
+            throw new DeException(new Throwable("Error inserting channel videos in Bulk: "
+                    + bulkResponse.buildFailureMessage()), INTERNAL_SERVER_ERROR_500);
+        }
+    }
+
+    /**
+     * Videos of the group last stored in the channel index, in the DM API order.
+     *
+     * @return list of videos, null if the store is off or has no batch newer than pixelle.channel.es.max.age.ms
+     */
+    public static List<VideoResponse> getStoredVideos(VideoGroupKey key) {
+        if (!persistChanneltoES.get()) {
+            return null;
+        }
+        SearchResponse response;
+        try {
+            response = client.prepareSearch(channelIndex.get())
+                    .setTypes(videosType.get())
+                    .setQuery(filteredQuery(matchAllQuery(), boolFilter()
+                            .must(termFilter(GROUP, groupId(key)))
+                            .must(rangeFilter(FETCHED_TIME).gte(currentTimeMillis() - storedMaxAgeMillis.get()))))
+                    .addSort(FETCHED_TIME, DESC)
+                    .addSort(RANK, ASC)
+                    .setFetchSource(VideoResponse.SOURCE_FIELDS, null)
+                    .setSize(maxVideosToCache.get())
+                    .execute().actionGet();
+        } catch (ElasticsearchException e) {
+            logger.warn("Could not read the stored videos of " + key, e);
+            return null;
         }
+        List<VideoResponse> videos = new ArrayList<>();
+        Object batch = null;
+        for (SearchHit hit : response.getHits().getHits()) {
+            // older batches of the group are not deleted, only the last one is read
+            if (batch != null && !batch.equals(hit.getSortValues()[0])) {
+                break;
+            }
+            batch = hit.getSortValues()[0];
+            try {
+                videos.add(readVideoResponse(hit));
+            } catch (IOException e) {
+                logger.warn("Could not read the stored videos of " + key, e);
+                return null;
+            }
+        }
+        return videos.isEmpty() ? null : videos;
+    }
+
+    private static String groupId(VideoGroupKey key) {
+        return sha1().hashString(key.getChannels() + "|" + key.getPlaylist() + "|" + key.getSortOrder(), UTF_8)
+                .toString();
     }
 
     public static List<VideoResponse> getFilteredVideos(List<Video> channelVideos) {
@@ -106,6 +308,7 @@ public class ChannelProcessor extends VideoProcessor {
                 video.setTitle(channelVideo.getTitle());
                 video.setDescription(channelVideo.getDescription());
                 video.setDuration(channelVideo.getDuration());
+                video.setCreatedTime(channelVideo.getCreatedTime());
                 DateTimeFormatter df = forPattern(getDateTimeFormatString());
                 DateTime dt = new DateTime(channelVideo.getCreatedTime());
 
@@ -124,40 +327,40 @@ public class ChannelProcessor extends VideoProcessor {
 
     private static Boolean filterVideo(Video channelVideo) {
         if (!channelVideo.getAllowEmbed()) {
-            logger.info("AllowEmbed blocked: " + channelVideo.toString());
+            logger.debug("AllowEmbed blocked: {}", channelVideo);
             return true;
         }
 //        According to publisher biz dev team, we should can show geo blocked videos for channels
 //        if (!channelVideo.getGeoBlocking().contains("allow")) {
-//            logger.info("Geo blocked: " + channelVideo.toString());
+//            logger.info("Geo blocked: {}", channelVideo);
 //            return true;
 //        }
         if (!isEmptyList(channelVideo.getMediaBlocking())) {
-            logger.info("Media blocked: " + channelVideo.toString());
+            logger.debug("Media blocked: {}", channelVideo);
             return true;
         }
         if (!channelVideo.getAds()) {
-            logger.info("AdVideo blocked: " + channelVideo.toString());
+            logger.debug("AdVideo blocked: {}", channelVideo);
             return true;
         }
         if (!StringUtils.equalsIgnoreCase(channelVideo.getMode(), "vod")) {
-            logger.info("Vod blocked: " + channelVideo.toString());
+            logger.debug("Vod blocked: {}", channelVideo);
             return true;
         }
         if (channelVideo.getThreeDim()) {
-            logger.info("3Dim blocked: " + channelVideo.toString());
+            logger.debug("3Dim blocked: {}", channelVideo);
             return true;
         }
         if (channelVideo.getExplicit()) {
-            logger.info("Explicit blocked: " + channelVideo.toString());
+            logger.debug("Explicit blocked: {}", channelVideo);
             return true;
         }
         if (channelVideo.getDuration() < 30) {
-            logger.info("Less than 30 blocked: " + channelVideo.toString());
+            logger.debug("Less than 30 blocked: {}", channelVideo);
             return true;
         }
         if (!StringUtils.equalsIgnoreCase(channelVideo.getStatus(), "published")) {
-            logger.info("Unpublished blocked: " + channelVideo.toString());
+            logger.debug("Unpublished blocked: {}", channelVideo);
             return true;
         }
         return false;
@@ -2,6 +2,7 @@ package com.dailymotion.pixelle.de.processor;
 
 import com.dailymotion.pixelle.de.model.AdUnit;
 import com.dailymotion.pixelle.de.model.AdUnitResponse;
+import com.dailymotion.pixelle.de.model.EngagementEvent;
 import com.dailymotion.pixelle.de.model.ItemsResponse;
 import com.dailymotion.pixelle.de.model.SearchQueryRequest;
 import com.dailymotion.pixelle.de.model.Video;
@@ -82,6 +83,12 @@ public class DEProcessor {
     @Inject
     public DEProcessor(Client esClient) {
         client = esClient;
+        EngagementCounters.start();
+        VideoFallbackPool.start();
+    }
+
+    public static void recordEngagement(List<EngagementEvent> events) throws DeException {
+        EngagementCounters.record(events);
     }
 
 
@@ -122,18 +129,10 @@ public class DEProcessor {
         } else if (at.length == 1 && containsIgnoreCase(at[0], "organic")) {
             stopwatch = videosTimer.start();
             try {
+                // targeted videos already backfilled with the untargeted ones
                 targetedVideos = new VideoQueryCommand(sq, positions).execute();
-
-                if (targetedVideos != null && targetedVideos.size() >= positions) {
-
-                    itemsResponse.setResponse(targetedVideos);
-                    return itemsResponse;
-                } else {
-                    List<VideoResponse> untargetedVideos = getUntargetedVideos(targetedVideos, positions, sq);
-                    mergedList = mergeAndFillList(null, targetedVideos, untargetedVideos, positions, pattern);
-                    itemsResponse.setResponse(mergedList);
-                    return itemsResponse;
-                }
+                itemsResponse.setResponse(targetedVideos);
+                return itemsResponse;
             } finally {
                 videosTimer.record(stopwatch.getDuration(MILLISECONDS), MILLISECONDS);
             }
@@ -204,20 +203,9 @@ public class DEProcessor {
                     throw new DeException(e, INTERNAL_SERVER_ERROR_500);
                 }
 
-                //if we have enough ads and videos, merge and send
-                if (!isEmptyList(ads) && !isEmptyList(targetedVideos) && ads.size() + targetedVideos.size() >= positions) {
-                    mergedList = mergeAndFillList(ads, targetedVideos, null, positions, pattern);
-                    itemsResponse.setResponse(mergedList);
-                    return itemsResponse;
-                } else if (isEmptyList(ads) && targetedVideos.size() >= positions) { //ads empty, enough videos
-                    itemsResponse.setResponse(targetedVideos);
-                    return itemsResponse;
-                } else { //fill with untargetged videos
-                    List<VideoResponse> untargetedVideos = getUntargetedVideos(targetedVideos, positions, sq);
-                    mergedList = mergeAndFillList(ads, targetedVideos, untargetedVideos, positions, pattern);
-                    itemsResponse.setResponse(mergedList);
-                    return itemsResponse;
-                }
+                mergedList = mergeAndFillList(ads, targetedVideos, null, positions, pattern);
+                itemsResponse.setResponse(mergedList);
+                return itemsResponse;
             } finally {
                 openWidgetTimer.record(stopwatch.getDuration(MILLISECONDS), MILLISECONDS);
             }
@@ -249,7 +237,11 @@ public class DEProcessor {
         if (isBlank(indexName) || isBlank(type) || isBlank(id)) {
             return false;
         }
-        return client.prepareDelete(indexName, type, id).execute().actionGet().isFound();
+        boolean found = client.prepareDelete(indexName, type, id).execute().actionGet().isFound();
+        if (StringUtils.equals(indexName, promotedIndex.get())) {
+            AdEligibilityIndex.remove(id);
+        }
+        return found;
     }
 
     /*
@@ -293,6 +285,9 @@ public class DEProcessor {
                 && client.admin().indices().prepareDelete(indexName).execute().actionGet().isAcknowledged()) {
             logger.info("successfully deleted index: " + promotedIndex.get());
         }
+        if (StringUtils.equals(indexName, promotedIndex.get())) {
+            AdEligibilityIndex.rebuild(null);
+        }
     }
 
     private static SearchQueryRequest modifySearchQueryReq(SearchQueryRequest sq) {
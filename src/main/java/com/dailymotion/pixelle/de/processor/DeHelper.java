@@ -3,12 +3,15 @@ package com.dailymotion.pixelle.de.processor;
 import com.dailymotion.pixelle.de.model.AdUnitResponse;
 import com.dailymotion.pixelle.de.model.ItemsResponse;
 import com.dailymotion.pixelle.de.model.VideoResponse;
+import com.fasterxml.jackson.databind.ObjectReader;
 import com.google.common.collect.Ordering;
 import com.netflix.config.DynamicIntProperty;
 import com.netflix.config.DynamicStringProperty;
+import org.elasticsearch.common.bytes.BytesReference;
 import org.joda.time.DateTime;
 import org.slf4j.Logger;
 
+import java.io.IOException;
 import java.util.Iterator;
 import java.util.List;
 
@@ -19,6 +22,7 @@ import static java.util.Collections.sort;
 import static org.apache.commons.lang3.StringUtils.join;
 import static org.joda.time.DateTime.now;
 import static org.joda.time.DateTimeZone.UTC;
+import static org.joda.time.format.DateTimeFormat.forPattern;
 import static org.slf4j.LoggerFactory.getLogger;
 
 /**
@@ -51,6 +55,14 @@ public final class DeHelper {
             getInstance().getIntProperty("videos.retryOnConflict", 5);
     public static final DynamicIntProperty maxImpressions =
             getInstance().getIntProperty("impressions.max", 3);
+    // native: one native script per query, fields: function_score on the fields derived at write time,
+    // scripts: the original ctr/goal scripts, kept for parity checks
+    public static final String RANKING_NATIVE = "native";
+    public static final String RANKING_FIELDS = "fields";
+    public static final String RANKING_SCRIPTS = "scripts";
+    public static final String NATIVE_LANG = "native";
+    public static final DynamicStringProperty rankingMode =
+            getInstance().getStringProperty("ranking.mode", RANKING_NATIVE);
 
     public static final DynamicIntProperty dePort =
             getInstance().getIntProperty("port", 8080);
@@ -59,7 +71,12 @@ public final class DeHelper {
     public static final String CATEGORIESBYCOUNTRY = "COUNTRY_CATEGORY";
     public static final String DEVICESBYCOUNTRY = "COUNTRY_DEVICE";
     public static final String FORMATSBYCOUNTRY = "COUNTRY_FORMAT";
+    public static final String[] DAYS = {"sunday", "monday", "tuesday", "wednesday", "thursday", "friday",
+            "saturday"};
+    public static final int HOURS_IN_DAY = 24;
     private static final String DATETIME_FORMAT = "yyyy-MM-dd'T'HH:mm:ssZ";
+    private static final long MILLIS_IN_HOUR = 3600000L;
+    private static final long MILLIS_IN_DAY = 24 * MILLIS_IN_HOUR;
     private static Logger logger = getLogger(DeHelper.class);
 
     private DeHelper() {
@@ -85,6 +102,119 @@ public final class DeHelper {
         return DATETIME_FORMAT;
     }
 
+    /**
+     * @param time yyyy-MM-dd'T'HH:mm:ssZ formatted time
+     * @return epoch millis
+     */
+    public static long toEpochMillis(String time) {
+        return parseDateTime(time, false);
+    }
+
+    /**
+     * @param time yyyy-MM-dd'T'HH:mm:ssZ formatted time
+     * @return hour of the week in the offset of the given time, 0 being sunday midnight
+     */
+    public static int toHourOfWeek(String time) {
+        long localMillis = parseDateTime(time, true);
+        long days = Math.floorDiv(localMillis, MILLIS_IN_DAY);
+        // 1970-01-01 was a thursday
+        int dayOfWeek = (int) Math.floorMod(days + 4, 7);
+        return dayOfWeek * HOURS_IN_DAY + (int) (Math.floorMod(localMillis, MILLIS_IN_DAY) / MILLIS_IN_HOUR);
+    }
+
+    /*
+      Parses yyyy-MM-ddTHH:mm:ss followed by Z, +HHmm or +HH:mm without allocating,
+      anything else goes through joda
+     */
+    private static long parseDateTime(String time, boolean wallClock) {
+        int len = time == null ? 0 : time.length();
+        if (len >= 20 && time.charAt(4) == '-' && time.charAt(7) == '-' && time.charAt(10) == 'T'
+                && time.charAt(13) == ':' && time.charAt(16) == ':') {
+            int year = digits(time, 0, 4);
+            int month = digits(time, 5, 2);
+            int day = digits(time, 8, 2);
+            int hour = digits(time, 11, 2);
+            int minute = digits(time, 14, 2);
+            int second = digits(time, 17, 2);
+            int offsetMinutes = offsetMinutes(time, 19);
+            if (year >= 0 && month >= 1 && month <= 12 && day >= 1 && day <= daysInMonth(year, month) && hour >= 0 && hour < 24
+                    && minute >= 0 && minute < 60 && second >= 0 && second < 60 && offsetMinutes != Integer.MIN_VALUE) {
+                long localMillis = toEpochDay(year, month, day) * MILLIS_IN_DAY
+                        + hour * MILLIS_IN_HOUR + minute * 60000L + second * 1000L;
+                return wallClock ? localMillis : localMillis - offsetMinutes * 60000L;
+            }
+        }
+        DateTime dt = forPattern(DATETIME_FORMAT).withOffsetParsed().parseDateTime(time);
+        return wallClock ? dt.getMillis() + dt.getZone().getOffset(dt.getMillis()) : dt.getMillis();
+    }
+
+    private static int digits(String s, int from, int count) {
+        int value = 0;
+        for (int i = from; i < from + count; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static int offsetMinutes(String s, int from) {
+        int len = s.length();
+        char sign = s.charAt(from);
+        if (sign == 'Z' && len == from + 1) {
+            return 0;
+        }
+        if (sign != '+' && sign != '-') {
+            return Integer.MIN_VALUE;
+        }
+        int hours;
+        int minutes;
+        if (len == from + 5) {
+            hours = digits(s, from + 1, 2);
+            minutes = digits(s, from + 3, 2);
+        } else if (len == from + 6 && s.charAt(from + 3) == ':') {
+            hours = digits(s, from + 1, 2);
+            minutes = digits(s, from + 4, 2);
+        } else {
+            return Integer.MIN_VALUE;
+        }
+        if (hours < 0 || minutes < 0) {
+            return Integer.MIN_VALUE;
+        }
+        return sign == '-' ? -(hours * 60 + minutes) : hours * 60 + minutes;
+    }
+
+    private static int daysInMonth(int year, int month) {
+        if (month == 2) {
+            return year % 4 == 0 && (year % 100 != 0 || year % 400 == 0) ? 29 : 28;
+        }
+        return month == 4 || month == 6 || month == 9 || month == 11 ? 30 : 31;
+    }
+
+    // days since 1970-01-01 in the proleptic gregorian calendar
+    private static long toEpochDay(int year, int month, int day) {
+        long y = month <= 2 ? year - 1 : year;
+        long era = Math.floorDiv(y, 400);
+        long yoe = y - era * 400;
+        long doy = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        return era * 146097 + doe - 719468;
+    }
+
+    /**
+     * Same as the default ctr.script.code, without the _score factor.
+     *
+     * @return null if there is not enough data to compute a ctr
+     */
+    public static Float ctrScore(Number clicks, Number impressions) {
+        if (clicks == null || impressions == null || clicks.doubleValue() < 0 || impressions.doubleValue() <= 0) {
+            return null;
+        }
+        return (float) Math.log(1 + (0.35 * 100 * clicks.doubleValue() / impressions.doubleValue()));
+    }
+
     public static List<String> toLowerCase(List<String> list) {
         if (!isEmptyList(list)) {
             for (int i = 0; i < list.size(); i++) {
@@ -175,4 +305,14 @@ public final class DeHelper {
             return text;
         }
     }
+
+    /**
+     * Decodes a document source straight from its bytes, without going through a String.
+     */
+    public static <T> T readSource(ObjectReader reader, BytesReference source) throws IOException {
+        if (source.hasArray()) {
+            return reader.readValue(source.array(), source.arrayOffset(), source.length());
+        }
+        return reader.readValue(source.streamInput());
+    }
 }
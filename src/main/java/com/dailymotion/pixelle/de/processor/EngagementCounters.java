@@ -0,0 +1,278 @@
+package com.dailymotion.pixelle.de.processor;
+
+import com.dailymotion.pixelle.de.model.EngagementEvent;
+import com.dailymotion.pixelle.de.plugins.IncrementCountersScript;
+import com.netflix.config.DynamicIntProperty;
+import com.netflix.servo.DefaultMonitorRegistry;
+import com.netflix.servo.monitor.BasicCounter;
+import com.netflix.servo.monitor.Counter;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.client.transport.NoNodeAvailableException;
+import org.elasticsearch.cluster.block.ClusterBlockException;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.slf4j.Logger;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.Function;
+
+import static com.dailymotion.pixelle.de.processor.DeHelper.NATIVE_LANG;
+import static com.netflix.config.DynamicPropertyFactory.getInstance;
+import static com.netflix.servo.monitor.MonitorConfig.builder;
+import static java.util.Collections.emptyMap;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.apache.commons.lang3.StringUtils.equalsIgnoreCase;
+import static org.apache.commons.lang3.StringUtils.isBlank;
+import static org.eclipse.jetty.http.HttpStatus.BAD_REQUEST_400;
+import static org.elasticsearch.rest.RestStatus.NOT_FOUND;
+import static org.elasticsearch.script.ScriptService.ScriptType.INLINE;
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * In memory clicks, views and impressions deltas per ad unit and video, flushed to the promoted and organic indices
+ * as coalesced bulk partial updates. Recording an event only locks the pending deltas of its id, so hot ads do not
+ * contend on the index.
+ */
+public final class EngagementCounters {
+    private static final Logger logger = getLogger(EngagementCounters.class);
+    private static final DynamicIntProperty flushIntervalMillis =
+            getInstance().getIntProperty("engagement.flush.interval.ms", 10000);
+    // JMX: com.netflix.servo.COUNTER.EngagementEventsReceived
+    private static final Counter eventsReceived = new BasicCounter(builder("EngagementEventsReceived").build());
+    // JMX: com.netflix.servo.COUNTER.EngagementUpdatesFlushed
+    private static final Counter updatesFlushed = new BasicCounter(builder("EngagementUpdatesFlushed").build());
+    private static final ConcurrentMap<String, Deltas> adUnitDeltas = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, Deltas> videoDeltas = new ConcurrentHashMap<>();
+    private static final String PROMOTED = "promoted";
+    private static final String ORGANIC = "organic";
+    private static ScheduledExecutorService flusher;
+
+    static {
+        DefaultMonitorRegistry.getInstance().register(eventsReceived);
+        DefaultMonitorRegistry.getInstance().register(updatesFlushed);
+    }
+
+    private EngagementCounters() {
+    }
+
+    /**
+     * Adds the events to the pending deltas, they reach the indices on the next flush.
+     */
+    public static void record(List<EngagementEvent> events) throws DeException {
+        if (events == null) {
+            throw new DeException(new Throwable("no events found in request body"), BAD_REQUEST_400);
+        }
+        for (EngagementEvent event : events) {
+            if (event == null || isBlank(event.getId())) {
+                throw new DeException(new Throwable("events must have an id"), BAD_REQUEST_400);
+            }
+            if (!equalsIgnoreCase(event.getType(), PROMOTED) && !equalsIgnoreCase(event.getType(), ORGANIC)) {
+                throw new DeException(new Throwable("event type must be promoted or organic"), BAD_REQUEST_400);
+            }
+            if (isNegative(event.getClicks()) || isNegative(event.getViews()) || isNegative(event.getImpressions())) {
+                throw new DeException(new Throwable("clicks, views and impressions can not be negative"),
+                        BAD_REQUEST_400);
+            }
+        }
+        for (EngagementEvent event : events) {
+            ConcurrentMap<String, Deltas> deltas = equalsIgnoreCase(event.getType(), PROMOTED) ? adUnitDeltas : videoDeltas;
+            add(deltas, event.getId(), value(event.getClicks()), value(event.getViews()), value(event.getImpressions()));
+            eventsReceived.increment();
+        }
+    }
+
+    private static boolean isNegative(Integer value) {
+        return value != null && value < 0;
+    }
+
+    private static long value(Integer value) {
+        return value == null ? 0 : value;
+    }
+
+    /*
+      deltas are only changed inside the map's compute, a drained instance can not receive events anymore
+     */
+    private static void add(ConcurrentMap<String, Deltas> deltas, String id, long clicks, long views,
+                            long impressions) {
+        deltas.compute(id, (k, d) -> (d == null ? new Deltas() : d).add(clicks, views, impressions));
+    }
+
+    /**
+     * Starts flushing in the background, every engagement.flush.interval.ms.
+     */
+    static synchronized void start() {
+        if (flusher == null) {
+            flusher = newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "engagement-flusher");
+                t.setDaemon(true);
+                return t;
+            });
+            scheduleFlush();
+        }
+    }
+
+    /**
+     * Stops the background flushes and writes what is still pending.
+     */
+    public static synchronized void stop() {
+        if (flusher != null) {
+            flusher.shutdownNow();
+            flusher = null;
+        }
+        flush();
+    }
+
+    // rescheduled after each run so that interval changes apply without a restart
+    private static synchronized void scheduleFlush() {
+        if (flusher != null) {
+            flusher.schedule(() -> {
+                try {
+                    flush();
+                } finally {
+                    scheduleFlush();
+                }
+            }, Math.max(flushIntervalMillis.get(), 100), MILLISECONDS);
+        }
+    }
+
+    /**
+     * Writes the pending deltas, the ones that could not be written are kept for the next flush.
+     */
+    public static synchronized void flush() {
+        flush(PROMOTED, adUnitDeltas, AdUnitProcessor::incrementCounters);
+        flush(ORGANIC, videoDeltas, VideoProcessor::incrementCounters);
+    }
+
+    private static void flush(String name, ConcurrentMap<String, Deltas> deltas,
+                              Function<Map<String, long[]>, Map<String, long[]>> increment) {
+        Map<String, long[]> drained = drain(deltas);
+        if (drained.isEmpty()) {
+            return;
+        }
+        Map<String, long[]> failed;
+        try {
+            failed = increment.apply(drained);
+        } catch (RuntimeException e) {
+            // bulkIncrement does not throw once the bulk is sent, nothing was applied
+            logger.error("Could not flush the " + name + " engagement, will retry", e);
+            failed = drained;
+        }
+        updatesFlushed.increment(drained.size() - failed.size());
+        restore(deltas, failed);
+    }
+
+    /**
+     * Applies the deltas as bulk partial updates going through the increment_counters script. Deltas that may have
+     * been applied are never returned for a retry, they would be counted twice. Does not throw once the bulk is sent.
+     *
+     * @param updated receives the ids of the documents that were updated
+     * @return deltas that were not applied and should be retried
+     */
+    static Map<String, long[]> bulkIncrement(Client client, String index, String type, Map<String, long[]> deltas,
+                                             int retryOnConflict, List<String> updated) {
+        BulkRequestBuilder bulk;
+        try {
+            bulk = client.prepareBulk();
+            for (Map.Entry<String, long[]> entry : deltas.entrySet()) {
+                long[] d = entry.getValue();
+                bulk.add(client.prepareUpdate(index, type, entry.getKey())
+                        .setScript(IncrementCountersScript.NAME, INLINE)
+                        .setScriptLang(NATIVE_LANG)
+                        .setScriptParams(IncrementCountersScript.params(d[0], d[1], d[2]))
+                        .setRetryOnConflict(retryOnConflict));
+            }
+        } catch (RuntimeException e) {
+            logger.error("Could not build the engagement bulk of " + index + ", will retry", e);
+            return deltas;
+        }
+        BulkResponse response;
+        try {
+            response = bulk.execute().actionGet();
+        } catch (NoNodeAvailableException | ClusterBlockException | EsRejectedExecutionException e) {
+            logger.error("Could not flush the engagement of " + index + ", will retry", e);
+            return deltas;
+        } catch (RuntimeException e) {
+            // timeouts and failures after the bulk was sent leave it unknown which updates were applied
+            logger.error("Engagement of " + index + " may not have been applied, dropping " + deltas.size()
+                    + " updates", e);
+            return emptyMap();
+        }
+        Map<String, long[]> failed = new HashMap<>();
+        for (BulkItemResponse item : response.getItems()) {
+            if (!item.isFailed()) {
+                updated.add(item.getId());
+            } else if (item.getFailure().getStatus() == NOT_FOUND) {
+                // document deleted since the events were recorded, nothing to retry
+                logger.warn("Could not apply engagement to " + item.getId() + ": " + item.getFailureMessage());
+            } else {
+                // conflicts beyond retryOnConflict, full bulk queues
+                logger.warn("Could not apply engagement to " + item.getId() + ", will retry: "
+                        + item.getFailureMessage());
+                failed.put(item.getId(), deltas.get(item.getId()));
+            }
+        }
+        return failed;
+    }
+
+    /*
+      entries idle for a whole flush are removed, so that the maps only hold recently active ids
+     */
+    private static Map<String, long[]> drain(ConcurrentMap<String, Deltas> deltas) {
+        Map<String, long[]> drained = new HashMap<>();
+        for (String id : deltas.keySet()) {
+            Deltas[] detached = new Deltas[1];
+            deltas.computeIfPresent(id, (k, d) -> {
+                if (!d.isEmpty()) {
+                    detached[0] = d;
+                    return new Deltas();
+                }
+                return d.idle++ > 0 ? null : d;
+            });
+            if (detached[0] != null) {
+                drained.put(id, detached[0].toArray());
+            }
+        }
+        return drained;
+    }
+
+    private static void restore(ConcurrentMap<String, Deltas> deltas, Map<String, long[]> failed) {
+        for (Map.Entry<String, long[]> entry : failed.entrySet()) {
+            long[] d = entry.getValue();
+            add(deltas, entry.getKey(), d[0], d[1], d[2]);
+        }
+    }
+
+    /*
+      pending deltas of an id, only read and written inside the compute methods of its map
+     */
+    private static final class Deltas {
+        private long clicks;
+        private long views;
+        private long impressions;
+        // consecutive flushes without events
+        private int idle;
+
+        Deltas add(long clicks, long views, long impressions) {
+            this.clicks += clicks;
+            this.views += views;
+            this.impressions += impressions;
+            return this;
+        }
+
+        boolean isEmpty() {
+            return clicks == 0 && views == 0 && impressions == 0;
+        }
+
+        long[] toArray() {
+            return new long[]{clicks, views, impressions};
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.dailymotion.pixelle.de.processor;
+
+import com.netflix.config.PropertyWrapper;
+import org.elasticsearch.index.query.FilterBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.slf4j.Logger;
+
+import java.util.function.Function;
+
+import static org.elasticsearch.index.query.FilterBuilders.termFilter;
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * A query serialized once to json with a slot for the per request filter. Only the filter is built and serialized
+ * per request, the rest (function_score functions, scripts, decay settings) is recompiled only when one of the
+ * properties it depends on changes.
+ */
+final class QuerySkeleton {
+    private static final Logger logger = getLogger(QuerySkeleton.class);
+    private static final FilterBuilder SLOT = termFilter("_slot", "_slot");
+    private static final String SLOT_JSON = SLOT.buildAsBytes().toUtf8();
+
+    private final Function<FilterBuilder, QueryBuilder> factory;
+    private volatile String[] parts;
+    private volatile int generation;
+
+    /**
+     * @param factory   builds the query around the given filter
+     * @param dependsOn properties read by the factory
+     */
+    QuerySkeleton(Function<FilterBuilder, QueryBuilder> factory, PropertyWrapper<?>... dependsOn) {
+        this.factory = factory;
+        for (PropertyWrapper<?> property : dependsOn) {
+            property.addCallback(() -> {
+                generation++;
+                parts = null;
+            });
+        }
+    }
+
+    /**
+     * @return the query json, to be used with a wrapper query
+     */
+    String render(FilterBuilder filter) {
+        String[] p = parts;
+        if (p == null) {
+            int compiledGeneration = generation;
+            p = compile();
+            // do not publish if a property changed while compiling
+            if (compiledGeneration == generation) {
+                parts = p;
+            }
+        }
+        return p[0] + filter.buildAsBytes().toUtf8() + p[1];
+    }
+
+    private String[] compile() {
+        String json = factory.apply(SLOT).buildAsBytes().toUtf8();
+        int slot = json.indexOf(SLOT_JSON);
+        if (slot < 0 || json.indexOf(SLOT_JSON, slot + 1) >= 0) {
+            throw new IllegalStateException("query skeleton must contain exactly one filter slot: " + json);
+        }
+        logger.info("Compiled query skeleton: " + json);
+        return new String[]{json.substring(0, slot), json.substring(slot + SLOT_JSON.length())};
+    }
+}
@@ -0,0 +1,217 @@
+package com.dailymotion.pixelle.de.processor;
+
+import com.dailymotion.pixelle.de.model.VideoResponse;
+import com.netflix.config.DynamicBooleanProperty;
+import com.netflix.config.DynamicIntProperty;
+import com.netflix.servo.DefaultMonitorRegistry;
+import com.netflix.servo.monitor.BasicCounter;
+import com.netflix.servo.monitor.Counter;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHits;
+import org.elasticsearch.search.aggregations.bucket.terms.Terms;
+import org.elasticsearch.search.aggregations.metrics.tophits.TopHits;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static com.netflix.config.DynamicPropertyFactory.getInstance;
+import static com.netflix.servo.monitor.MonitorConfig.builder;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.apache.commons.lang3.StringUtils.lowerCase;
+import static org.eclipse.jetty.http.HttpStatus.INTERNAL_SERVER_ERROR_500;
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * In-memory pools of the best scored organic videos of each language, used to backfill with untargeted videos
+ * without querying ES. The pools are rebuilt in the background from one search and swapped in one go, a request
+ * they can not answer exactly (pool too short once the excluded videos are skipped) goes to ES as before.
+ */
+public final class VideoFallbackPool {
+    static final String LANGUAGES_AGG = "languages";
+    static final String TOP_VIDEOS_AGG = "top_videos";
+    private static final Logger logger = getLogger(VideoFallbackPool.class);
+    private static final DynamicBooleanProperty enabled =
+            getInstance().getBooleanProperty("videoquery.fallbackpool.enabled", false);
+    private static final DynamicIntProperty poolSize =
+            getInstance().getIntProperty("videoquery.fallbackpool.size", 100);
+    private static final DynamicIntProperty maxLanguages =
+            getInstance().getIntProperty("videoquery.fallbackpool.languages", 30);
+    private static final DynamicIntProperty refreshIntervalMillis =
+            getInstance().getIntProperty("videoquery.fallbackpool.refresh.ms", 60000);
+    // JMX: com.netflix.servo.COUNTER.FallbackPoolHits
+    private static final Counter poolHits = new BasicCounter(builder("FallbackPoolHits").build());
+    // JMX: com.netflix.servo.COUNTER.FallbackPoolMisses
+    private static final Counter poolMisses = new BasicCounter(builder("FallbackPoolMisses").build());
+    private static volatile Pools pools;
+    private static ScheduledExecutorService refresher;
+
+    static {
+        DefaultMonitorRegistry.getInstance().register(poolHits);
+        DefaultMonitorRegistry.getInstance().register(poolMisses);
+    }
+
+    private VideoFallbackPool() {
+    }
+
+    /**
+     * Starts rebuilding the pools in the background, every videoquery.fallbackpool.refresh.ms.
+     */
+    static synchronized void start() {
+        if (refresher == null) {
+            refresher = newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "fallback-pool-refresher");
+                t.setDaemon(true);
+                return t;
+            });
+            scheduleRebuild(0);
+        }
+    }
+
+    public static synchronized void stop() {
+        if (refresher != null) {
+            refresher.shutdownNow();
+            refresher = null;
+        }
+    }
+
+    // rescheduled after each run so that interval changes apply without a restart
+    private static synchronized void scheduleRebuild(long delayMillis) {
+        if (refresher != null) {
+            refresher.schedule(() -> {
+                if (enabled.get()) {
+                    rebuild();
+                } else {
+                    pools = null;
+                }
+                scheduleRebuild(Math.max(refreshIntervalMillis.get(), 1000));
+            }, delayMillis, MILLISECONDS);
+        }
+    }
+
+    /**
+     * Replaces the pools with the current best videos, the previous pools are kept if the search fails.
+     */
+    public static void rebuild() {
+        try {
+            SearchResponse response = VideoProcessor.searchTopVideosPerLanguage(maxLanguages.get(), poolSize.get());
+            pools = new Pools(response);
+            logger.info("Fallback pools rebuilt for {} languages", pools.languages.size());
+        } catch (DeException | RuntimeException e) {
+            logger.error("Could not rebuild the fallback pools, keeping the previous ones", e);
+        }
+    }
+
+    public static void clear() {
+        pools = null;
+    }
+
+    /**
+     * Best scored videos having one of the languages, in the same order as the untargeted ES query.
+     *
+     * @param languages   languages of the videos
+     * @param excludedIds videos to skip, may be null
+     * @param size        max number of videos
+     * @return list of videos, null if the pools can not answer
+     */
+    static List<VideoResponse> recommend(Collection<String> languages, Collection<String> excludedIds, int size) {
+        Pools p = pools;
+        if (!enabled.get() || p == null) {
+            return null;
+        }
+        List<VideoResponse> videos = p.recommend(languages, excludedIds, size);
+        if (videos == null) {
+            poolMisses.increment();
+        } else {
+            poolHits.increment();
+        }
+        return videos;
+    }
+
+    private static final class Pool {
+        private final VideoResponse[] videos;
+        private final float[] scores;
+        // every video of the language is in the pool
+        private final boolean complete;
+
+        Pool(Terms.Bucket bucket) throws DeException {
+            SearchHits hits = ((TopHits) bucket.getAggregations().get(TOP_VIDEOS_AGG)).getHits();
+            videos = new VideoResponse[hits.getHits().length];
+            scores = new float[videos.length];
+            for (int i = 0; i < videos.length; i++) {
+                SearchHit hit = hits.getAt(i);
+                try {
+                    videos[i] = VideoProcessor.readVideoResponse(hit);
+                } catch (IOException e) {
+                    throw new DeException(e, INTERNAL_SERVER_ERROR_500);
+                }
+                scores[i] = hit.getScore();
+            }
+            complete = bucket.getDocCount() <= videos.length;
+        }
+    }
+
+    private static final class Pools {
+        private final Map<String, Pool> languages = new HashMap<>();
+        // a language without pool has no video
+        private final boolean allLanguages;
+
+        Pools(SearchResponse response) throws DeException {
+            Terms terms = response.getAggregations().get(LANGUAGES_AGG);
+            for (Terms.Bucket bucket : terms.getBuckets()) {
+                languages.put(bucket.getKey(), new Pool(bucket));
+            }
+            allLanguages = terms.getSumOfOtherDocCounts() == 0;
+        }
+
+        /*
+          k-way merge of the pools by score, the first pool wins ties
+         */
+        List<VideoResponse> recommend(Collection<String> requestLanguages, Collection<String> excludedIds, int size) {
+            List<Pool> merged = new ArrayList<>();
+            for (String language : new LinkedHashSet<>(requestLanguages)) {
+                Pool pool = languages.get(lowerCase(language));
+                if (pool != null) {
+                    merged.add(pool);
+                } else if (!allLanguages) {
+                    return null;
+                }
+            }
+            int[] next = new int[merged.size()];
+            Set<String> skipped = excludedIds == null ? new HashSet<>() : new HashSet<>(excludedIds);
+            List<VideoResponse> videos = new ArrayList<>();
+            while (videos.size() < size) {
+                int best = -1;
+                for (int i = 0; i < next.length; i++) {
+                    Pool pool = merged.get(i);
+                    if (next[i] == pool.videos.length) {
+                        if (!pool.complete) {
+                            // the next video of this language is unknown
+                            return null;
+                        }
+                    } else if (best < 0 || pool.scores[next[i]] > merged.get(best).scores[next[best]]) {
+                        best = i;
+                    }
+                }
+                if (best < 0) {
+                    break;
+                }
+                VideoResponse video = merged.get(best).videos[next[best]++];
+                if (skipped.add(video.getVideoId())) {
+                    videos.add(video);
+                }
+            }
+            return videos;
+        }
+    }
+}
@@ -1,10 +1,13 @@
 package com.dailymotion.pixelle.de.processor;
 
+import com.dailymotion.pixelle.de.model.OrganicVideosKey;
 import com.dailymotion.pixelle.de.model.SearchQueryRequest;
 import com.dailymotion.pixelle.de.model.Video;
 import com.dailymotion.pixelle.de.model.VideoResponse;
+import com.dailymotion.pixelle.de.plugins.VideoScoreScript;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 import com.google.inject.Inject;
 import com.netflix.config.DynamicBooleanProperty;
 import com.netflix.config.DynamicDoubleProperty;
@@ -12,16 +15,21 @@ import com.netflix.config.DynamicFloatProperty;
 import com.netflix.config.DynamicStringProperty;
 import org.apache.lucene.search.Explanation;
 import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.ListenableActionFuture;
 import org.elasticsearch.action.bulk.BulkRequestBuilder;
 import org.elasticsearch.action.bulk.BulkResponse;
 import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.search.MultiSearchRequestBuilder;
+import org.elasticsearch.action.search.MultiSearchResponse;
 import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.index.query.BoolFilterBuilder;
 import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.FilterBuilder;
 import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.query.functionscore.FunctionScoreQueryBuilder;
 import org.elasticsearch.index.query.functionscore.ScoreFunctionBuilder;
 import org.elasticsearch.search.SearchHit;
 import org.slf4j.Logger;
@@ -30,34 +38,54 @@ import javax.annotation.Nullable;
 import javax.validation.constraints.NotNull;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutionException;
 
-import static com.dailymotion.pixelle.common.services.CacheService.getOrganicVideosCache;
-import static com.dailymotion.pixelle.de.processor.DeHelper.channelIndex;
+import static com.dailymotion.pixelle.common.services.CacheService.getOrganicVideos;
+import static com.dailymotion.pixelle.common.services.CacheService.getOrganicVideosIfPresent;
+import static com.dailymotion.pixelle.de.processor.DeHelper.NATIVE_LANG;
+import static com.dailymotion.pixelle.de.processor.DeHelper.RANKING_NATIVE;
+import static com.dailymotion.pixelle.de.processor.DeHelper.RANKING_SCRIPTS;
+import static com.dailymotion.pixelle.de.processor.DeHelper.ctrScore;
 import static com.dailymotion.pixelle.de.processor.DeHelper.isEmptyList;
 import static com.dailymotion.pixelle.de.processor.DeHelper.organicIndex;
 import static com.dailymotion.pixelle.de.processor.DeHelper.retryOnConflictVideos;
+import static com.dailymotion.pixelle.de.processor.DeHelper.rankingMode;
+import static com.dailymotion.pixelle.de.processor.DeHelper.readSource;
 import static com.dailymotion.pixelle.de.processor.DeHelper.toLowerCase;
 import static com.dailymotion.pixelle.de.processor.DeHelper.videosType;
 import static com.fasterxml.jackson.databind.DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES;
 import static com.netflix.config.DynamicPropertyFactory.getInstance;
 import static java.util.Arrays.asList;
+import static java.util.Collections.emptyIterator;
+import static java.util.stream.Collectors.toList;
 import static org.apache.commons.lang3.StringUtils.isBlank;
+import static org.elasticsearch.common.unit.TimeValue.parseTimeValue;
 import static org.eclipse.jetty.http.HttpStatus.BAD_REQUEST_400;
 import static org.eclipse.jetty.http.HttpStatus.INTERNAL_SERVER_ERROR_500;
 import static org.elasticsearch.action.search.SearchType.QUERY_THEN_FETCH;
 import static org.elasticsearch.index.query.FilterBuilders.andFilter;
 import static org.elasticsearch.index.query.FilterBuilders.boolFilter;
+import static org.elasticsearch.index.query.FilterBuilders.existsFilter;
+import static org.elasticsearch.index.query.FilterBuilders.missingFilter;
+import static org.elasticsearch.index.query.FilterBuilders.notFilter;
 import static org.elasticsearch.index.query.FilterBuilders.rangeFilter;
 import static org.elasticsearch.index.query.FilterBuilders.termFilter;
 import static org.elasticsearch.index.query.FilterBuilders.termsFilter;
 import static org.elasticsearch.index.query.QueryBuilders.functionScoreQuery;
 import static org.elasticsearch.index.query.QueryBuilders.matchQuery;
+import static org.elasticsearch.index.query.QueryBuilders.wrapperQuery;
+import static org.elasticsearch.index.query.functionscore.ScoreFunctionBuilders.fieldValueFactorFunction;
 import static org.elasticsearch.index.query.functionscore.ScoreFunctionBuilders.gaussDecayFunction;
 import static org.elasticsearch.index.query.functionscore.ScoreFunctionBuilders.scriptFunction;
 import static org.elasticsearch.index.query.functionscore.ScoreFunctionBuilders.weightFactorFunction;
+import static org.elasticsearch.search.aggregations.AggregationBuilders.terms;
+import static org.elasticsearch.search.aggregations.AggregationBuilders.topHits;
 import static org.slf4j.LoggerFactory.getLogger;
 
 /**
@@ -65,10 +93,16 @@ import static org.slf4j.LoggerFactory.getLogger;
  */
 public class VideoProcessor {
     private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    private static final ObjectReader VIDEO_READER =
+            OBJECT_MAPPER.readerFor(Video.class).without(FAIL_ON_UNKNOWN_PROPERTIES);
+    private static final ObjectReader VIDEO_RESPONSE_READER =
+            OBJECT_MAPPER.readerFor(VideoResponse.class).without(FAIL_ON_UNKNOWN_PROPERTIES);
     private static final String CHANNEL_TIER = "channel_tier";
     private static final String GOLD = "gold";
     private static final String BRONZE = "bronze";
     private static final String SILVER = "silver";
+    private static final String CTR_SCORE = "ctr_score";
+    private static final String TIER_WEIGHT = "tier_weight";
     private static final Logger logger = getLogger(VideoProcessor.class);
     private static final DynamicFloatProperty goldPartnerWeight =
             getInstance().getFloatProperty("goldPartner.weightPercent", 0.5f);
@@ -94,6 +128,9 @@ public class VideoProcessor {
             getInstance().getStringProperty("ctr.script.lang", "groovy");
     private static final DynamicBooleanProperty useVideoCaching =
             getInstance().getBooleanProperty("videoquery.usecache", false);
+    private static final QuerySkeleton videoQuery = new QuerySkeleton(VideoProcessor::videoScoringQuery,
+            pubDateScale, pubDateDecay, pubDateOffset, ctrScriptFunction, ctrScriptLang, goldPartnerWeight,
+            silverPartnerWeight, bronzePartnerWeight, boostMode, maxBoost, scoreMode, rankingMode);
     static Client client;
 
     static {
@@ -112,10 +149,9 @@ public class VideoProcessor {
         }
         GetResponse response = client.prepareGet(organicIndex.get(), videosType.get(), id).execute().actionGet();
         Video video = null;
-        byte[] responseSourceAsBytes = response.getSourceAsBytes();
-        if (responseSourceAsBytes != null) {
+        if (!response.isSourceEmpty()) {
             try {
-                video = OBJECT_MAPPER.readValue(responseSourceAsBytes, Video.class);
+                video = readSource(VIDEO_READER, response.getSourceAsBytesRef());
             } catch (IOException e) {
                 logger.error("error parsing video", e);
                 throw new DeException(e, INTERNAL_SERVER_ERROR_500);
@@ -148,15 +184,24 @@ public class VideoProcessor {
         video.setLanguages(toLowerCase(video.getLanguages()));
 
         video.setVideoId(video.getId());
+        video.setCtrScore(ctrScore(video.getClicks(), video.getImpressions()));
+        video.setTierWeight(getTierWeight(video.getChannelTier()));
         return video;
     }
 
-    public static void insertVideoInBulk(List<Video> videos) throws DeException {
-        insertVideoInBulk(videos, organicIndex.get());
+    private static Float getTierWeight(String channelTier) {
+        if (GOLD.equals(channelTier)) {
+            return goldPartnerWeight.getValue();
+        } else if (SILVER.equals(channelTier)) {
+            return silverPartnerWeight.getValue();
+        } else if (BRONZE.equals(channelTier)) {
+            return bronzePartnerWeight.getValue();
+        }
+        return null;
     }
 
-    public static void insertChannelVideoInBulk(List<Video> videos) throws DeException {
-        insertVideoInBulk(videos, channelIndex.get());
+    public static void insertVideoInBulk(List<Video> videos) throws DeException {
+        insertVideoInBulk(videos, organicIndex.get());
     }
 
     private static void insertVideoInBulk(List<Video> videos, String index) throws DeException {
@@ -169,7 +214,7 @@ public class VideoProcessor {
         for (Video video : videos) {
             if (!filterVideo(video)) {
                 video = modifyVideoForInsert(video);
-                logger.info("Loading video to " + index + " : " + video.toString());
+                logger.debug("Loading video to {} : {}", index, video);
 
                 try {
                     bulkRequest.add(client.prepareUpdate(index, videosType.get(), video.getId())
@@ -209,13 +254,9 @@ public class VideoProcessor {
      */
     public static List<VideoResponse> recommendUsingCache(@Nullable SearchQueryRequest sq, Integer positions) throws DeException {
 
-        if (useVideoCaching.get()) {
+        if (useVideoCaching.get() && !sq.isDebugEnabled()) {
             try {
-                List<VideoResponse> vr = getOrganicVideosCache().get(sq);
-                if (vr.size() > positions) {
-                    return vr.subList(0, positions);
-                }
-                return vr;
+                return cachedVideos(getOrganicVideos(OrganicVideosKey.of(sq)), sq, positions);
             } catch (ExecutionException e) {
                 logger.warn("execution exception while getting data form video cache...will send from es directly", e.getCause());
                 return recommend(sq, positions);
@@ -224,6 +265,20 @@ public class VideoProcessor {
         return recommend(sq, positions);
     }
 
+    /*
+      cached lists are shared by all the requests of a key, the excluded videos are removed per request
+     */
+    private static List<VideoResponse> cachedVideos(List<VideoResponse> vr, SearchQueryRequest sq, int positions) {
+        if (!isEmptyList(sq.getExcludedVideoIds())) {
+            Set<String> excludedIds = new HashSet<>(sq.getExcludedVideoIds());
+            vr = vr.stream().filter(v -> !excludedIds.contains(v.getVideoId())).collect(toList());
+        }
+        if (vr.size() > positions) {
+            return vr.subList(0, positions);
+        }
+        return vr;
+    }
+
     /**
      * Return a list of videos based on search query using elasticsearch.
      *
@@ -232,8 +287,91 @@ public class VideoProcessor {
      * @return list of videos.
      */
     public static List<VideoResponse> recommend(@Nullable SearchQueryRequest sq, Integer positions) throws DeException {
+        SearchResponse searchResponse;
+        try {
+            searchResponse = videoSearch(sq, positions).execute().actionGet();
+        } catch (ElasticsearchException e) {
+            throw new DeException(e, INTERNAL_SERVER_ERROR_500);
+        }
+        List<VideoResponse> videoResponses = toVideoResponses(searchResponse, sq.isDebugEnabled());
+        logger.info("Num video responses: {}", videoResponses.size());
 
-        List<VideoResponse> videoResponses;
+        return videoResponses;
+    }
+
+    /**
+     * Targeted videos followed by untargeted videos in the request languages, then in english, without duplicates.
+     * The untargeted tiers are searched in one multi search, alongside the targeted query when it is not cached.
+     *
+     * @param sq
+     * @param positions
+     * @return at most positions videos
+     */
+    public static List<VideoResponse> recommendWithFallback(SearchQueryRequest sq, Integer positions) throws DeException {
+        List<VideoResponse> targeted = null;
+        boolean cached = useVideoCaching.get() && !sq.isDebugEnabled();
+        if (cached) {
+            List<VideoResponse> vr = getOrganicVideosIfPresent(OrganicVideosKey.of(sq));
+            if (vr != null) {
+                targeted = cachedVideos(vr, sq, positions);
+                if (targeted.size() >= positions) {
+                    return targeted;
+                }
+            }
+        }
+        List<SearchQueryRequest> tiers = new ArrayList<>();
+        List<List<VideoResponse>> pooled = new ArrayList<>();
+        if (!cached) {
+            tiers.add(sq);
+            pooled.add(null);
+        }
+        for (SearchQueryRequest tier : untargetedTiers(sq, new ArrayList<>())) {
+            tiers.add(tier);
+            pooled.add(fromFallbackPool(tier, positions));
+        }
+        ListenableActionFuture<MultiSearchResponse> tiersFuture = searchTiers(tiers, pooled, positions);
+        if (cached && targeted == null) {
+            // loads the cache while the untargeted tiers are searched
+            targeted = recommendUsingCache(sq, positions);
+        }
+        List<List<VideoResponse>> results = new ArrayList<>();
+        if (targeted != null) {
+            results.add(targeted);
+        }
+        results.addAll(collectTiers(tiersFuture, pooled, sq.isDebugEnabled()));
+        return mergeTiers(results, positions);
+    }
+
+    /**
+     * Best scored videos of each language for the fallback pools, scored by the untargeted query.
+     *
+     * @param maxLanguages max number of languages
+     * @param perLanguage  max number of videos per language
+     * @return search response with the top videos aggregated per language
+     */
+    static SearchResponse searchTopVideosPerLanguage(int maxLanguages, int perLanguage) throws DeException {
+        BoolQueryBuilder mq = QueryBuilders.boolQuery()
+                .must(wrapperQuery(videoQuery.render(existsFilter("languages"))));
+        try {
+            return client.prepareSearch(organicIndex.get())
+                    .setQuery(mq)
+                    .setTypes(videosType.get())
+                    .setSearchType(QUERY_THEN_FETCH)
+                    .setSize(0)
+                    .addAggregation(terms(VideoFallbackPool.LANGUAGES_AGG).field("languages").size(maxLanguages)
+                            .subAggregation(topHits(VideoFallbackPool.TOP_VIDEOS_AGG).setSize(perLanguage)
+                                    .setFetchSource(VideoResponse.SOURCE_FIELDS, null)))
+                    .execute().actionGet();
+        } catch (ElasticsearchException e) {
+            throw new DeException(e, INTERNAL_SERVER_ERROR_500);
+        }
+    }
+
+    static VideoResponse readVideoResponse(SearchHit hit) throws IOException {
+        return readSource(VIDEO_RESPONSE_READER, hit.sourceRef());
+    }
+
+    private static SearchRequestBuilder videoSearch(SearchQueryRequest sq, Integer positions) {
         BoolFilterBuilder fb = boolFilter();
         if (sq != null) {
             if (!isEmptyList(sq.getCategories()) && !(sq.getCategories().size() == 1 && sq.getCategories().indexOf("all") == 0)) {
@@ -262,117 +400,220 @@ public class VideoProcessor {
             }
         }
 
-        // origin is current date by default
-        ScoreFunctionBuilder pubDateScoreBuilder =
-                gaussDecayFunction("publication_date", pubDateScale.getValue())
-                        .setDecay(pubDateDecay.getValue())
-                        .setOffset(pubDateOffset.getValue());
-
-
-        QueryBuilder qb = functionScoreQuery(fb)
-                .add(pubDateScoreBuilder)
-                .add(andFilter(rangeFilter("clicks").from(0), rangeFilter("impressions").from(0)),
-                        scriptFunction(ctrScriptFunction.getValue()).lang(ctrScriptLang.getValue()))
-                .add(termFilter(CHANNEL_TIER, GOLD), weightFactorFunction(goldPartnerWeight.getValue()))
-                .add(termFilter(CHANNEL_TIER, SILVER), weightFactorFunction(silverPartnerWeight.getValue()))
-                .add(termFilter(CHANNEL_TIER, BRONZE), weightFactorFunction(bronzePartnerWeight.getValue()))
-                .boostMode(boostMode.getValue())
-                .maxBoost(maxBoost.getValue())
-                .scoreMode(scoreMode.getValue());
-
-        mq.must(qb);
+        String query = videoQuery.render(fb);
+        mq.must(wrapperQuery(query));
         SearchRequestBuilder srb1 = client.prepareSearch(organicIndex.get())
                 .setQuery(mq)
                 .setTypes(videosType.get())
                 .setSearchType(QUERY_THEN_FETCH)
+                .setFetchSource(VideoResponse.SOURCE_FIELDS, null)
                 .setSize(positions);
 
         if (sq.isDebugEnabled()) {
             srb1.setExplain(true);
         }
-        logger.info(srb1.toString());
-        SearchResponse searchResponse = null;
-        try {
-            searchResponse = srb1.execute().actionGet();
-        } catch (ElasticsearchException e) {
-            throw new DeException(e, INTERNAL_SERVER_ERROR_500);
-        }
-        videoResponses = new ArrayList<VideoResponse>();
+        logger.debug(query);
+        return srb1;
+    }
+
+    private static List<VideoResponse> toVideoResponses(SearchResponse searchResponse, boolean debug) throws DeException {
+        List<VideoResponse> videoResponses = new ArrayList<VideoResponse>();
 
         for (SearchHit hit : searchResponse.getHits().getHits()) {
             try {
-                VideoResponse video = OBJECT_MAPPER.readValue(hit.getSourceAsString(), VideoResponse.class);
-                if (sq.isDebugEnabled()) {
+                VideoResponse video = readVideoResponse(hit);
+                if (debug) {
                     Explanation ex = new Explanation();
                     ex.setValue(hit.getScore());
                     ex.setDescription("Source ====>" + hit.getSourceAsString());
                     ex.addDetail(hit.explanation());
                     video.setDebugInfo(ex.toHtml().replace("\n", ""));
-                    logger.info(ex.toString());
+                    logger.info("{}", ex);
                 }
                 videoResponses.add(video);
             } catch (IOException e) {
                 throw new DeException(e, INTERNAL_SERVER_ERROR_500);
             }
         }
-        logger.info("Num video responses:" + videoResponses.size());
-
         return videoResponses;
     }
 
-    public static List<VideoResponse> getUntargetedVideos(List<VideoResponse> targetedVideo, int positions, SearchQueryRequest sq) throws DeException {
-        logger.info("Trying to fill query with untargetted videos: Search Query" + sq.toString());
+    private static List<List<VideoResponse>> toVideoResponses(MultiSearchResponse multiSearchResponse, boolean debug)
+            throws DeException {
+        List<List<VideoResponse>> tiers = new ArrayList<>();
+        for (MultiSearchResponse.Item item : multiSearchResponse.getResponses()) {
+            if (item.isFailure()) {
+                throw new DeException(new Throwable(item.getFailureMessage()), INTERNAL_SERVER_ERROR_500);
+            }
+            tiers.add(toVideoResponses(item.getResponse(), debug));
+        }
+        return tiers;
+    }
+
+    private static MultiSearchResponse getTiers(ListenableActionFuture<MultiSearchResponse> tiersFuture)
+            throws DeException {
+        try {
+            return tiersFuture.actionGet();
+        } catch (ElasticsearchException e) {
+            throw new DeException(e, INTERNAL_SERVER_ERROR_500);
+        }
+    }
+
+    /*
+      untargeted tier answered from the fallback pools, null if they can not answer it
+     */
+    private static List<VideoResponse> fromFallbackPool(SearchQueryRequest tier, int size) {
+        if (tier.isDebugEnabled()) {
+            return null;
+        }
+        return VideoFallbackPool.recommend(tier.getLanguages(), tier.getExcludedVideoIds(), size);
+    }
+
+    /*
+      starts the search of the tiers which are not pooled, null if there is nothing to search
+     */
+    private static ListenableActionFuture<MultiSearchResponse> searchTiers(List<SearchQueryRequest> tiers,
+                                                                          List<List<VideoResponse>> pooled,
+                                                                          int size) throws DeException {
+        MultiSearchRequestBuilder msrb = client.prepareMultiSearch();
+        for (int i = 0; i < tiers.size(); i++) {
+            if (pooled.get(i) == null) {
+                msrb.add(videoSearch(tiers.get(i), size));
+            }
+        }
+        if (msrb.request().requests().isEmpty()) {
+            return null;
+        }
+        try {
+            return msrb.execute();
+        } catch (ElasticsearchException e) {
+            throw new DeException(e, INTERNAL_SERVER_ERROR_500);
+        }
+    }
+
+    /*
+      results of the tiers in order, taken from the pools or else from the multi search
+     */
+    private static List<List<VideoResponse>> collectTiers(ListenableActionFuture<MultiSearchResponse> tiersFuture,
+                                                          List<List<VideoResponse>> pooled,
+                                                          boolean debug) throws DeException {
+        Iterator<List<VideoResponse>> searched = tiersFuture == null ? emptyIterator()
+                : toVideoResponses(getTiers(tiersFuture), debug).iterator();
+        List<List<VideoResponse>> results = new ArrayList<>();
+        for (List<VideoResponse> tier : pooled) {
+            results.add(tier != null ? tier : searched.next());
+        }
+        return results;
+    }
+
+    /*
+      untargeted queries in the request languages (english if none) and, if they do not include it, in english
+     */
+    private static List<SearchQueryRequest> untargetedTiers(SearchQueryRequest sq, List<String> excludedIds) {
         List<String> languages = sq.getLanguages();
         if (isEmptyList(languages)) {
             languages = asList("en"); // default language if none provided
         }
-        //exclude the videos we already got
-        List<String> excludedIds = new ArrayList<String>();
-        for (VideoResponse v : targetedVideo) {
-            excludedIds.add(v.getVideoId());
+        List<SearchQueryRequest> tiers = new ArrayList<>();
+        tiers.add(untargetedQuery(sq, languages, excludedIds));
+        if (!languages.contains("en")) {
+            tiers.add(untargetedQuery(sq, asList("en"), excludedIds));
         }
+        return tiers;
+    }
 
+    private static SearchQueryRequest untargetedQuery(SearchQueryRequest sq, List<String> languages,
+                                                      List<String> excludedIds) {
         SearchQueryRequest sq1 = new SearchQueryRequest();
         sq1.setLanguages(languages);
         sq1.setDebugEnabled(sq.isDebugEnabled());
         sq1.setExcludedVideoIds(excludedIds);
+        return sq1;
+    }
 
-        int reqVideosSize = positions;
-        if (!isEmptyList(targetedVideo)) {
-            reqVideosSize = positions - targetedVideo.size();
+    /*
+      tiers in order, a video already returned by a previous tier is skipped
+     */
+    private static List<VideoResponse> mergeTiers(List<List<VideoResponse>> tiers, int positions) {
+        Map<String, VideoResponse> merged = new LinkedHashMap<>();
+        for (List<VideoResponse> tier : tiers) {
+            for (VideoResponse video : tier) {
+                if (merged.size() >= positions) {
+                    return new ArrayList<>(merged.values());
+                }
+                merged.putIfAbsent(video.getVideoId(), video);
+            }
         }
-        List<VideoResponse> unTargetedVideos = recommend(sq1, reqVideosSize);
-        int sizeUnTargeted = 0;
-        if (!isEmptyList(unTargetedVideos)) {
-            sizeUnTargeted = unTargetedVideos.size();
+        return new ArrayList<>(merged.values());
+    }
+
+    private static QueryBuilder videoScoringQuery(FilterBuilder fb) {
+        // origin is current date by default
+        ScoreFunctionBuilder pubDateScoreBuilder =
+                gaussDecayFunction("publication_date", pubDateScale.getValue())
+                        .setDecay(pubDateDecay.getValue())
+                        .setOffset(pubDateOffset.getValue());
+
+        if (RANKING_NATIVE.equals(rankingMode.get())) {
+            return functionScoreQuery(fb)
+                    .add(scriptFunction(VideoScoreScript.NAME).lang(NATIVE_LANG)
+                            .param(VideoScoreScript.SCALE_MILLIS, parseTimeValue(pubDateScale.getValue(), null).millis())
+                            .param(VideoScoreScript.OFFSET_MILLIS, parseTimeValue(pubDateOffset.getValue(), null).millis())
+                            .param(VideoScoreScript.DECAY, pubDateDecay.getValue())
+                            .param(VideoScoreScript.GOLD_WEIGHT, goldPartnerWeight.getValue())
+                            .param(VideoScoreScript.SILVER_WEIGHT, silverPartnerWeight.getValue())
+                            .param(VideoScoreScript.BRONZE_WEIGHT, bronzePartnerWeight.getValue()))
+                    .boostMode(boostMode.getValue())
+                    .maxBoost(maxBoost.getValue());
         }
-        if (sizeUnTargeted >= positions) {
-            return unTargetedVideos;
+        FunctionScoreQueryBuilder qb = functionScoreQuery(fb).add(pubDateScoreBuilder);
+        if (RANKING_SCRIPTS.equals(rankingMode.get())) {
+            qb.add(andFilter(rangeFilter("clicks").from(0), rangeFilter("impressions").from(0)),
+                    scriptFunction(ctrScriptFunction.getValue()).lang(ctrScriptLang.getValue()))
+                    .add(termFilter(CHANNEL_TIER, GOLD), weightFactorFunction(goldPartnerWeight.getValue()))
+                    .add(termFilter(CHANNEL_TIER, SILVER), weightFactorFunction(silverPartnerWeight.getValue()))
+                    .add(termFilter(CHANNEL_TIER, BRONZE), weightFactorFunction(bronzePartnerWeight.getValue()));
+        } else {
+            qb.add(notFilter(missingFilter(CTR_SCORE)), fieldValueFactorFunction(CTR_SCORE))
+                    .add(notFilter(missingFilter(TIER_WEIGHT)), fieldValueFactorFunction(TIER_WEIGHT));
         }
+        return qb.boostMode(boostMode.getValue())
+                .maxBoost(maxBoost.getValue())
+                .scoreMode(scoreMode.getValue());
+    }
 
-        //if we didn't get enough videos for a target lang, we fill it with en lang videos
-        if (sizeUnTargeted < reqVideosSize && !languages.contains("en")) {
-            sq1.setLanguages(asList("en"));
-
-            //make sure to exclude any videos we have in the list already
-            for (VideoResponse v : unTargetedVideos) {
+    public static List<VideoResponse> getUntargetedVideos(List<VideoResponse> targetedVideo, int positions, SearchQueryRequest sq) throws DeException {
+        logger.debug("Trying to fill query with untargetted videos: Search Query {}", sq);
+        //exclude the videos we already got
+        List<String> excludedIds = new ArrayList<String>();
+        int reqVideosSize = positions;
+        if (!isEmptyList(targetedVideo)) {
+            for (VideoResponse v : targetedVideo) {
                 excludedIds.add(v.getVideoId());
             }
-            // try to backfill with en videos
-            List<VideoResponse> englishTargetedVideos = recommend(sq1, reqVideosSize - sizeUnTargeted);
-            int sizeEnglishLangVideos = 0;
-            if (!isEmptyList(englishTargetedVideos)) {
-                sizeEnglishLangVideos = englishTargetedVideos.size();
-            }
+            reqVideosSize = positions - targetedVideo.size();
+        }
+        if (reqVideosSize <= 0) {
+            return new ArrayList<VideoResponse>();
+        }
 
-            if (sizeUnTargeted > 0 && sizeEnglishLangVideos > 0) {
-                unTargetedVideos.addAll(englishTargetedVideos);
-                return unTargetedVideos;
-            } else if (sizeEnglishLangVideos > 0) {
-                return englishTargetedVideos;
-            }
+        // the english backfill is searched together with the request languages
+        List<SearchQueryRequest> tiers = untargetedTiers(sq, excludedIds);
+        List<List<VideoResponse>> pooled = new ArrayList<>();
+        for (SearchQueryRequest tier : tiers) {
+            pooled.add(fromFallbackPool(tier, reqVideosSize));
         }
-        return unTargetedVideos;
+        ListenableActionFuture<MultiSearchResponse> tiersFuture = searchTiers(tiers, pooled, reqVideosSize);
+        return mergeTiers(collectTiers(tiersFuture, pooled, sq.isDebugEnabled()), reqVideosSize);
     }
-}
 
+    /**
+     * Adds clicks, views and impressions deltas to the videos.
+     *
+     * @return deltas that were not applied
+     */
+    static Map<String, long[]> incrementCounters(Map<String, long[]> deltas) {
+        return EngagementCounters.bulkIncrement(client, organicIndex.get(), videosType.get(), deltas,
+                retryOnConflictVideos.get(), new ArrayList<>());
+    }
+}
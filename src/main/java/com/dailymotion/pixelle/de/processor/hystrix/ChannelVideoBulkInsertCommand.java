@@ -4,7 +4,8 @@ package com.dailymotion.pixelle.de.processor.hystrix;
  * Created by n.dhupia on 2/4/15.
  */
 
-import com.dailymotion.pixelle.de.model.Video;
+import com.dailymotion.pixelle.de.model.VideoGroupKey;
+import com.dailymotion.pixelle.de.model.VideoResponse;
 import com.netflix.config.DynamicIntProperty;
 import com.netflix.hystrix.HystrixCommand;
 import com.netflix.hystrix.HystrixCommandProperties;
@@ -12,7 +13,7 @@ import org.slf4j.Logger;
 
 import java.util.List;
 
-import static com.dailymotion.pixelle.de.processor.VideoProcessor.insertChannelVideoInBulk;
+import static com.dailymotion.pixelle.de.processor.ChannelProcessor.insertGroupVideosInBulk;
 import static com.netflix.config.DynamicPropertyFactory.getInstance;
 import static com.netflix.hystrix.HystrixCommand.Setter.withGroupKey;
 import static com.netflix.hystrix.HystrixCommandGroupKey.Factory.asKey;
@@ -29,23 +30,25 @@ public class ChannelVideoBulkInsertCommand extends HystrixCommand<Void> {
     private static final DynamicIntProperty timeoutMillis =
             getInstance().getIntProperty("channel.videobulkbinsert.timeout.milliseconds", 60000);
     private static Logger logger = getLogger(ChannelVideoBulkInsertCommand.class);
-    private final List<Video> videos;
+    private final VideoGroupKey key;
+    private final List<VideoResponse> videos;
 
 
-    public ChannelVideoBulkInsertCommand(List<Video> videos) {
+    public ChannelVideoBulkInsertCommand(VideoGroupKey key, List<VideoResponse> videos) {
         super(withGroupKey(asKey("DecisioningEngine"))
                 .andCommandKey(Factory.asKey("ChannelVideoBulkInsert"))
                 .andCommandPropertiesDefaults(HystrixCommandProperties.Setter()
                         .withExecutionTimeoutInMilliseconds(timeoutMillis.get())
                         .withExecutionIsolationStrategy(SEMAPHORE)
                         .withExecutionIsolationSemaphoreMaxConcurrentRequests(semaphoreCount.get())));
+        this.key = key;
         this.videos = videos;
 
     }
 
     @Override
     protected Void run() throws Exception {
-        insertChannelVideoInBulk(videos);
+        insertGroupVideosInBulk(key, videos);
         return null;
     }
 }
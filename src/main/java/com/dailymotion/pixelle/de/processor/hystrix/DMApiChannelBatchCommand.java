@@ -0,0 +1,152 @@
+package com.dailymotion.pixelle.de.processor.hystrix;
+
+import com.dailymotion.pixelle.de.model.DMApiResponse;
+import com.dailymotion.pixelle.de.model.Video;
+import com.dailymotion.pixelle.de.processor.DeException;
+import com.netflix.config.DynamicIntProperty;
+import com.netflix.hystrix.HystrixCommand;
+import com.netflix.hystrix.HystrixCommandProperties;
+import com.netflix.hystrix.HystrixThreadPoolKey;
+import com.netflix.hystrix.exception.HystrixBadRequestException;
+import org.slf4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import static com.dailymotion.pixelle.de.processor.hystrix.DMApiQueryCommand.dmApi;
+import static com.dailymotion.pixelle.de.processor.hystrix.DMApiQueryCommand.timeout;
+import static com.netflix.config.DynamicPropertyFactory.getInstance;
+import static com.netflix.hystrix.HystrixCommand.Setter.withGroupKey;
+import static com.netflix.hystrix.HystrixCommandGroupKey.Factory.asKey;
+import static com.netflix.hystrix.HystrixCommandKey.Factory;
+import static org.apache.commons.lang3.StringUtils.join;
+import static org.apache.commons.lang3.StringUtils.lowerCase;
+import static org.eclipse.jetty.http.HttpStatus.INTERNAL_SERVER_ERROR_500;
+import static org.eclipse.jetty.http.HttpStatus.isClientError;
+import static org.slf4j.LoggerFactory.getLogger;
+
+/**
+ * Videos of several channels from one DM API call, split back per channel. The DM API returns at most LIMIT videos
+ * for all the owners, so a batch has at most LIMIT / dm.api.collapser.min.videos channels, and a channel left with
+ * less than dm.api.collapser.min.videos of a truncated response is fetched alone. The channels fetched alone are
+ * fetched in parallel, the batch times out after two DM API calls.
+ */
+public class DMApiChannelBatchCommand extends HystrixCommand<Map<String, List<Video>>> {
+    // limit of the DMApiService queries
+    private static final int LIMIT = 50;
+    private static final DynamicIntProperty minVideos = getInstance().getIntProperty("dm.api.collapser.min.videos", 25);
+    private static Logger logger = getLogger(DMApiChannelBatchCommand.class);
+    private final Set<String> channels;
+    private final String sortOrder;
+
+    public DMApiChannelBatchCommand(Collection<String> channels, String sortOrder) {
+        super(withGroupKey(asKey("DecisioningEngine"))
+                .andCommandKey(Factory.asKey("DMChannelBatchQuery"))
+                .andThreadPoolKey(HystrixThreadPoolKey.Factory.asKey("DMChannelQueryPool"))
+                .andCommandPropertiesDefaults(HystrixCommandProperties.Setter()
+                        .withExecutionTimeoutInMilliseconds(2 * timeout.get())));
+        this.channels = new LinkedHashSet<>(channels);
+        this.sortOrder = sortOrder;
+    }
+
+    /**
+     * @return max channels of a batch for each of them to get dm.api.collapser.min.videos
+     */
+    static int maxChannels() {
+        return Math.max(LIMIT / Math.max(minVideos.get(), 1), 1);
+    }
+
+    /**
+     * @return videos of each channel, keyed by the channel as requested, null for a channel the DM API rejects
+     */
+    @Override
+    protected Map<String, List<Video>> run() throws DeException {
+        List<Video> videos;
+        try {
+            videos = fetch(join(channels, ','));
+        } catch (HystrixBadRequestException e) {
+            if (channels.size() == 1) {
+                throw e;
+            }
+            // one bad channel must not fail the others of the batch
+            return fetchEach(channels);
+        }
+        Map<String, List<Video>> byOwner = byOwner(videos);
+        boolean truncated = videos.size() >= LIMIT;
+        Map<String, List<Video>> result = new HashMap<>();
+        List<String> truncatedChannels = new ArrayList<>();
+        for (String channel : channels) {
+            List<Video> channelVideos = byOwner.getOrDefault(lowerCase(channel), new ArrayList<>());
+            if (truncated && channelVideos.size() < minVideos.get() && channels.size() > 1) {
+                logger.info("Channel {} truncated in a batch, fetching it alone", channel);
+                truncatedChannels.add(channel);
+            } else {
+                result.put(channel, channelVideos);
+            }
+        }
+        result.putAll(fetchEach(truncatedChannels));
+        return result;
+    }
+
+    /**
+     * Splits the videos of a DM API call by owner. Owners are given by username or id, the videos are keyed by both,
+     * lower cased.
+     */
+    public static Map<String, List<Video>> byOwner(List<Video> videos) {
+        Map<String, List<Video>> byOwner = new HashMap<>();
+        for (Video video : videos) {
+            byOwner.computeIfAbsent(lowerCase(video.getOwnerUsername()), k -> new ArrayList<>()).add(video);
+            if (video.getOwnerId() != null && !video.getOwnerId().equalsIgnoreCase(video.getOwnerUsername())) {
+                byOwner.computeIfAbsent(lowerCase(video.getOwnerId()), k -> new ArrayList<>()).add(video);
+            }
+        }
+        return byOwner;
+    }
+
+    /*
+      one command per channel, all running in parallel. A channel rejected by the DM API is mapped to null.
+     */
+    private Map<String, List<Video>> fetchEach(Collection<String> owners) throws DeException {
+        Map<String, Future<List<Video>>> fetches = new LinkedHashMap<>();
+        for (String owner : owners) {
+            fetches.put(owner, DMApiQueryCommand.batchFallback(owner, sortOrder).queue());
+        }
+        Map<String, List<Video>> result = new HashMap<>();
+        for (Map.Entry<String, Future<List<Video>>> fetch : fetches.entrySet()) {
+            try {
+                List<Video> videos = fetch.getValue().get();
+                result.put(fetch.getKey(), videos == null ? new ArrayList<>() : videos);
+            } catch (ExecutionException e) {
+                if (!(e.getCause() instanceof HystrixBadRequestException)) {
+                    throw new DeException(e.getCause(), INTERNAL_SERVER_ERROR_500);
+                }
+                logger.info("Channel {} rejected by the DM API", fetch.getKey());
+                result.put(fetch.getKey(), null);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DeException(e, INTERNAL_SERVER_ERROR_500);
+            }
+        }
+        return result;
+    }
+
+    private List<Video> fetch(String owners) throws DeException {
+        try {
+            DMApiResponse re = dmApi.getChannelVideos(owners, sortOrder);
+            return re == null || re.getList() == null ? new ArrayList<>() : re.getList();
+        } catch (DeException e) {
+            if (isClientError(e.getStatus())) {
+                throw new HystrixBadRequestException(e.getMessage(), e);
+            }
+            throw e;
+        }
+    }
+}
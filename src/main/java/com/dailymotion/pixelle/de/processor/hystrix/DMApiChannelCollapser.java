@@ -0,0 +1,86 @@
+package com.dailymotion.pixelle.de.processor.hystrix;
+
+import com.dailymotion.pixelle.de.model.Video;
+import com.netflix.config.DynamicIntProperty;
+import com.netflix.hystrix.HystrixCollapser;
+import com.netflix.hystrix.HystrixCollapserKey;
+import com.netflix.hystrix.HystrixCollapserProperties;
+import com.netflix.hystrix.HystrixCommand;
+import com.netflix.hystrix.exception.HystrixBadRequestException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import static com.netflix.config.DynamicPropertyFactory.getInstance;
+import static com.netflix.hystrix.HystrixCollapser.Scope.GLOBAL;
+
+/**
+ * Collapses the videos queries of single channels made within dm.api.collapser.delay.ms into DM API calls of several
+ * channels, so that a cold start or a wave of refreshes does not send one call per channel. Queries are collapsed per
+ * sort order, and the collapsed ones are split in parallel batches of DMApiChannelBatchCommand.maxChannels().
+ */
+public class DMApiChannelCollapser extends HystrixCollapser<Map<String, List<Video>>, List<Video>, String> {
+    private static final DynamicIntProperty delayMillis = getInstance().getIntProperty("dm.api.collapser.delay.ms", 10);
+    private static final DynamicIntProperty maxChannels = getInstance().getIntProperty("dm.api.collapser.max.channels", 7);
+    private final String channel;
+    private final String sortOrder;
+
+    public DMApiChannelCollapser(String channel, String sortOrder) {
+        super(Setter.withCollapserKey(HystrixCollapserKey.Factory.asKey("DMChannelQuery-" + sortOrder))
+                .andScope(GLOBAL)
+                .andCollapserPropertiesDefaults(HystrixCollapserProperties.Setter()
+                        .withTimerDelayInMilliseconds(delayMillis.get())
+                        .withMaxRequestsInBatch(maxChannels.get())));
+        this.channel = channel;
+        this.sortOrder = sortOrder;
+    }
+
+    @Override
+    public String getRequestArgument() {
+        return channel;
+    }
+
+    @Override
+    protected Collection<Collection<CollapsedRequest<List<Video>, String>>> shardRequests(
+            Collection<CollapsedRequest<List<Video>, String>> requests) {
+        int batchSize = DMApiChannelBatchCommand.maxChannels();
+        Collection<Collection<CollapsedRequest<List<Video>, String>>> shards = new ArrayList<>();
+        List<CollapsedRequest<List<Video>, String>> shard = new ArrayList<>(batchSize);
+        for (CollapsedRequest<List<Video>, String> request : requests) {
+            if (shard.size() == batchSize) {
+                shards.add(shard);
+                shard = new ArrayList<>(batchSize);
+            }
+            shard.add(request);
+        }
+        if (!shard.isEmpty()) {
+            shards.add(shard);
+        }
+        return shards;
+    }
+
+    @Override
+    protected HystrixCommand<Map<String, List<Video>>> createCommand(
+            Collection<CollapsedRequest<List<Video>, String>> requests) {
+        List<String> channels = new ArrayList<>(requests.size());
+        for (CollapsedRequest<List<Video>, String> request : requests) {
+            channels.add(request.getArgument());
+        }
+        return new DMApiChannelBatchCommand(channels, sortOrder);
+    }
+
+    @Override
+    protected void mapResponseToRequests(Map<String, List<Video>> videos,
+                                         Collection<CollapsedRequest<List<Video>, String>> requests) {
+        for (CollapsedRequest<List<Video>, String> request : requests) {
+            List<Video> channelVideos = videos.get(request.getArgument());
+            if (channelVideos == null) {
+                request.setException(new HystrixBadRequestException("Invalid channel " + request.getArgument()));
+            } else {
+                request.setResponse(channelVideos);
+            }
+        }
+    }
+}
@@ -1,10 +1,13 @@
 package com.dailymotion.pixelle.de.processor.hystrix;
 
+import com.dailymotion.pixelle.common.services.DMApiDecoder;
 import com.dailymotion.pixelle.common.services.DMApiErrorDecoder;
+import com.dailymotion.pixelle.common.services.DMApiHttpClient;
 import com.dailymotion.pixelle.common.services.DMApiService;
 import com.dailymotion.pixelle.de.model.DMApiResponse;
 import com.dailymotion.pixelle.de.model.Video;
 import com.dailymotion.pixelle.de.processor.DeException;
+import com.netflix.config.DynamicBooleanProperty;
 import com.netflix.config.DynamicIntProperty;
 import com.netflix.config.DynamicLongProperty;
 import com.netflix.config.DynamicStringProperty;
@@ -12,7 +15,7 @@ import com.netflix.hystrix.HystrixCommand;
 import com.netflix.hystrix.HystrixCommandProperties;
 import com.netflix.hystrix.HystrixThreadPoolKey;
 import com.netflix.hystrix.exception.HystrixBadRequestException;
-import feign.jackson.JacksonDecoder;
+import feign.Client;
 import feign.jackson.JacksonEncoder;
 import org.slf4j.Logger;
 
@@ -34,14 +37,16 @@ import static org.slf4j.LoggerFactory.getLogger;
  * Created by n.dhupia on 3/2/15.
  */
 public class DMApiQueryCommand extends HystrixCommand<List<Video>> {
-    private static final DynamicIntProperty timeout = getInstance().getIntProperty("hystrix.dm.api.timeout", 5000);
+    static final DynamicIntProperty timeout = getInstance().getIntProperty("hystrix.dm.api.timeout", 5000);
     private static final DynamicStringProperty dmApiUrl = getInstance().getStringProperty("dm.api.url", "https://api.dailymotion.com");
     private static final DynamicLongProperty retryPeriod = getInstance().getLongProperty("dm.api.retry.period", 100);
     private static final DynamicLongProperty retryMaxPeriod = getInstance().getLongProperty("dm.api.retry.max.period", 1);
     private static final DynamicIntProperty retryMaxAttempts = getInstance().getIntProperty("dm.api.retry.max.attempts", 5);
-    private static final DMApiService dmApi = builder()
+    private static final DynamicBooleanProperty pooledClient = getInstance().getBooleanProperty("dm.api.http.pooled.enabled", false);
+    static final DMApiService dmApi = builder()
+            .client(pooledClient.get() ? new DMApiHttpClient() : new Client.Default(null, null))
             .retryer(new Default(retryPeriod.get(), SECONDS.toMillis(retryMaxPeriod.get()), retryMaxAttempts.get()))
-            .decoder(new JacksonDecoder())
+            .decoder(new DMApiDecoder())
             .encoder(new JacksonEncoder())
             .errorDecoder(new DMApiErrorDecoder())
             .target(DMApiService.class, dmApiUrl.get());
@@ -50,12 +55,17 @@ public class DMApiQueryCommand extends HystrixCommand<List<Video>> {
     private String channels;
     private String playlist;
     private String sortOrder;
+    private Long createdAfter;
 
 
     public DMApiQueryCommand(String channels, String playlist, String sortOrder) {
+        this(channels, playlist, sortOrder, "DMChannelQueryPool");
+    }
+
+    private DMApiQueryCommand(String channels, String playlist, String sortOrder, String threadPool) {
         super(withGroupKey(asKey("DecisioningEngine"))
                 .andCommandKey(Factory.asKey("DMChannelQuery"))
-                .andThreadPoolKey(HystrixThreadPoolKey.Factory.asKey("DMChannelQueryPool"))
+                .andThreadPoolKey(HystrixThreadPoolKey.Factory.asKey(threadPool))
                 .andCommandPropertiesDefaults(HystrixCommandProperties.Setter()
                         .withExecutionTimeoutInMilliseconds(timeout.get())));
         this.channels = channels;
@@ -63,6 +73,22 @@ public class DMApiQueryCommand extends HystrixCommand<List<Video>> {
         this.sortOrder = sortOrder;
     }
 
+    /**
+     * Only the videos of the channels created after the given DM API created_time.
+     */
+    public DMApiQueryCommand(String channels, String sortOrder, Long createdAfter) {
+        this(channels, null, sortOrder);
+        this.createdAfter = createdAfter;
+    }
+
+    /**
+     * Query of one channel made from a DMApiChannelBatchCommand, on its own pool so that the batches can not take all
+     * the threads it needs.
+     */
+    static DMApiQueryCommand batchFallback(String channel, String sortOrder) {
+        return new DMApiQueryCommand(channel, null, sortOrder, "DMChannelBatchFallbackPool");
+    }
+
     @Override
     protected List<Video> run() throws DeException {
 
@@ -75,7 +101,9 @@ public class DMApiQueryCommand extends HystrixCommand<List<Video>> {
         List<Video> cvs = null;
         try {
             DMApiResponse re = null;
-            if (isChannels) {
+            if (isChannels && createdAfter != null) {
+                re = dmApi.getChannelVideosCreatedAfter(channels, sortOrder, createdAfter);
+            } else if (isChannels) {
                 re = dmApi.getChannelVideos(channels, sortOrder);
             } else {
                 re = dmApi.getPlaylistVideos(playlist, sortOrder);
@@ -9,7 +9,7 @@ import org.slf4j.Logger;
 
 import java.util.List;
 
-import static com.dailymotion.pixelle.de.processor.VideoProcessor.recommendUsingCache;
+import static com.dailymotion.pixelle.de.processor.VideoProcessor.recommendWithFallback;
 import static com.netflix.config.DynamicPropertyFactory.getInstance;
 import static com.netflix.hystrix.HystrixCommand.Setter.withGroupKey;
 import static com.netflix.hystrix.HystrixCommandGroupKey.Factory.asKey;
@@ -40,6 +40,6 @@ public class VideoQueryCommand extends HystrixCommand<List<VideoResponse>> {
 
     @Override
     protected List<VideoResponse> run() throws Exception {
-        return recommendUsingCache(sq, positions);
+        return recommendWithFallback(sq, positions);
     }
 }
@@ -104,6 +104,7 @@ final class ESIndexTypeFactory {
         XContentBuilder builder = jsonBuilder().startObject().startObject(typeName).startObject("properties");
         builder.startObject("_created").field("type", "date").field("format", "date_time_no_millis").field("index", "not_analyzed").endObject();
         builder.startObject("_updated").field("type", "date").field("format", "date_time_no_millis").field("index", "not_analyzed").endObject();
+        // stored as epoch millis, which a date field accepts as is
         builder.startObject("start_date").field("type", "date").field("format", "date_time_no_millis").field("index", "not_analyzed").endObject();
         builder.startObject("end_date").field("type", "date").field("format", "date_time_no_millis").field("index", "not_analyzed").endObject();
 
@@ -117,7 +118,7 @@ final class ESIndexTypeFactory {
         builder.startObject("categories").field("type", "string").field("index", "not_analyzed").endObject();
         builder.startObject("excluded_locations").field("type", "string").field("index", "not_analyzed").endObject();
         builder.startObject("excluded_categories").field("type", "string").field("index", "not_analyzed").endObject();
-        builder.startObject("timetable").field("type", "string").field("index", "not_analyzed").endObject();
+        builder.startObject("blocked_hours").field("type", "integer").endObject();
         builder.startObject("devices").field("type", "string").field("index", "not_analyzed").endObject();
         builder.startObject("status").field("type", "string").field("index", "not_analyzed").endObject();
         builder.startObject("formats").field("type", "string").field("index", "not_analyzed").endObject();
@@ -134,6 +135,8 @@ final class ESIndexTypeFactory {
         builder.startObject("views").field("type", "float").endObject();
         builder.startObject("impressions").field("type", "float").endObject();
         builder.startObject("goal_views").field("type", "float").endObject();
+        builder.startObject("goal_reached").field("type", "boolean").field("index", "not_analyzed").endObject();
+        builder.startObject("ctr_score").field("type", "float").endObject();
 
         builder.startObject("currency").field("type", "string").field("index", "no").endObject();
         builder.startObject("tactic").field("type", "string").field("index", "no").endObject();
@@ -196,6 +199,8 @@ final class ESIndexTypeFactory {
         builder.startObject("clicks").field("type", "float").endObject();
         builder.startObject("views").field("type", "float").endObject();
         builder.startObject("impressions").field("type", "float").endObject();
+        builder.startObject("ctr_score").field("type", "float").endObject();
+        builder.startObject("tier_weight").field("type", "float").endObject();
 
         builder.startObject("status").field("type", "string").field("index", "not_analyzed").endObject();
         builder.startObject("thumbnail_url").field("type", "string").field("index", "no").endObject();
@@ -207,6 +212,12 @@ final class ESIndexTypeFactory {
         builder.startObject("channel_url").field("type", "string").field("index", "no").endObject();
 
         builder.startObject("duration").field("type", "integer").field("index", "no").endObject();
+        if (isTtlSet) {
+            // stored groups of channel videos, see ChannelProcessor
+            builder.startObject("group").field("type", "string").field("index", "not_analyzed").endObject();
+            builder.startObject("rank").field("type", "integer").endObject();
+            builder.startObject("fetched_time").field("type", "long").endObject();
+        }
         builder.endObject();
 
         if (isTtlSet) {
@@ -1,5 +1,6 @@
 package com.dailymotion.pixelle.de.providers;
 
+import com.dailymotion.pixelle.de.plugins.ScoringPlugin;
 import com.dailymotion.pixelle.de.processor.DeException;
 import com.google.inject.Provider;
 import com.google.inject.ProvisionException;
@@ -43,6 +44,7 @@ public class ESNodeClientProvider implements Provider<Client> {
     public Client get() {
         Builder elasticsearchSettings = settingsBuilder()
                 .put("node.name", nodeName.get())
+                .put("plugin.types", ScoringPlugin.class.getName())
                 .put("path.data", dataDirectory.get());
 
         Builder promotedSettings = settingsBuilder()
@@ -1,5 +1,6 @@
 package com.dailymotion.pixelle.de.providers;
 
+import com.dailymotion.pixelle.de.plugins.ScoringPlugin;
 import com.dailymotion.pixelle.de.processor.DeException;
 import com.google.inject.Provider;
 import com.google.inject.ProvisionException;
@@ -36,6 +37,7 @@ public final class ESTestNodeClientProvider implements Provider<Client> {
     public Client get() {
         Builder elasticsearchSettings = settingsBuilder()
                 .put("node.name", nodeName.get())
+                .put("plugin.types", ScoringPlugin.class.getName())
                 .put("index.store.type", "memory")
                 .put("index.number_of_shards", 1)
                 .put("index.number_of_replicas", 0)
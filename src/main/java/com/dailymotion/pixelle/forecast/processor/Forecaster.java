@@ -105,10 +105,10 @@ public class Forecaster {
                 .setQuery(qb)
                 .addAggregation(max("max").field("cpv")).addAggregation(min("min").field("cpv"));
 
-        logger.info(srb1.toString());
+        logger.debug("{}", srb1);
         SearchResponse searchResponse = srb1.execute().actionGet();
 
-        logger.info(searchResponse.toString());
+        logger.debug("{}", searchResponse);
         Aggregation minAggs = searchResponse.getAggregations().get("min");
         Aggregation maxAggs = searchResponse.getAggregations().get("max");
 
@@ -0,0 +1,25 @@
+package com.dailymotion.pixelle.de;
+
+import com.dailymotion.pixelle.de.processor.DeHelper;
+import org.joda.time.DateTime;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class DeHelperTest {
+
+    @Test
+    public void testParseDayOfMonth() throws Exception {
+        Assert.assertEquals(new DateTime("2016-02-29T10:00:00Z").getMillis(),
+                DeHelper.toEpochMillis("2016-02-29T10:00:00Z"));
+        for (String time : Arrays.asList("2014-02-31T10:00:00Z", "2015-02-29T10:00:00Z", "2014-04-31T10:00:00Z")) {
+            try {
+                DeHelper.toEpochMillis(time);
+                Assert.fail(time + " should not parse");
+            } catch (IllegalArgumentException e) {
+                // rejected as joda does
+            }
+        }
+    }
+}
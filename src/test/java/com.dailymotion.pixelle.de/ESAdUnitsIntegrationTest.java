@@ -2,15 +2,19 @@ package com.dailymotion.pixelle.de;
 
 import com.dailymotion.pixelle.de.model.AdUnit;
 import com.dailymotion.pixelle.de.model.AdUnitResponse;
+import com.dailymotion.pixelle.de.model.EngagementEvent;
 import com.dailymotion.pixelle.de.model.ItemsResponse;
 import com.dailymotion.pixelle.de.model.SearchQueryRequest;
+import com.dailymotion.pixelle.de.processor.AdEligibilityIndex;
 import com.dailymotion.pixelle.de.processor.AdUnitProcessor;
 import com.dailymotion.pixelle.de.processor.ChannelProcessor;
 import com.dailymotion.pixelle.de.processor.DEProcessor;
 import com.dailymotion.pixelle.de.processor.DeException;
 import com.dailymotion.pixelle.de.processor.DeHelper;
+import com.dailymotion.pixelle.de.processor.EngagementCounters;
 import com.dailymotion.pixelle.de.processor.VideoProcessor;
 import com.dailymotion.pixelle.de.processor.hystrix.AdInsertCommand;
+import com.dailymotion.pixelle.de.processor.hystrix.AdUpdateCommand;
 import com.dailymotion.pixelle.de.processor.hystrix.QueryCommand;
 import com.dailymotion.pixelle.de.providers.ESTestNodeClientProvider;
 import com.dailymotion.pixelle.forecast.processor.Forecaster;
@@ -29,6 +33,7 @@ import org.junit.Test;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 public class ESAdUnitsIntegrationTest {
@@ -336,6 +341,86 @@ public class ESAdUnitsIntegrationTest {
         deleteAdUnitsByIds("1", "2");
     }
 
+    @Test
+    public void testEligibilityIndexServedOnceFullyLoaded() throws Exception {
+        AdEligibilityIndex.clear();
+        try {
+            // a write before the full load must not publish a partial inventory
+            loadAdUnitMaps(createAdUnitDataMap("1", "1"));
+            Assert.assertFalse(AdEligibilityIndex.isReady());
+
+            AdEligibilityIndex.rebuild(DEProcessor.getAllAdUnits());
+            Assert.assertTrue(AdEligibilityIndex.isReady());
+            Assert.assertEquals(1, AdEligibilityIndex.size());
+        } finally {
+            AdEligibilityIndex.rebuild(DEProcessor.getAllAdUnits());
+            deleteAdUnitsByIds("1");
+        }
+    }
+
+    @Test
+    public void testAdWithoutCampaign() throws Exception {
+        Map m1 = createAdUnitDataMap("1", "1");
+        m1.put("internal_cpv", 1);
+        Map m2 = createAdUnitDataMap("2", "1");
+        m2.remove("campaign");
+        m2.put("internal_cpv", 10);
+        Map m3 = createAdUnitDataMap("3", "1");
+        m3.remove("campaign");
+        m3.put("internal_cpv", 5);
+        loadAdUnitMaps(m1, m2, m3);
+        SearchQueryRequest sq = new SearchQueryRequest();
+        sq.setTime("2014-11-21T01:00:00Z");
+        sq.setCategories(new ArrayList(Arrays.asList("cat1")));
+        sq.setDevice("dev1");
+        sq.setFormat(DeHelper.FORMAT.INFEED.toString());
+        sq.setLanguages(new ArrayList<String>(Arrays.asList("en")));
+        sq.setLocations(new ArrayList<String>(Arrays.asList("us")));
+
+        // the ads without a campaign are deduplicated like a campaign of their own
+        ItemsResponse i = new QueryCommand(sq, 10, null).execute();
+        Assert.assertEquals(2, i.getResponse().size());
+        Assert.assertEquals("2", ((AdUnitResponse) i.getResponse().get(0)).getAd());
+        Assert.assertNull(((AdUnitResponse) i.getResponse().get(0)).getCampaignId());
+        Assert.assertEquals("1", ((AdUnitResponse) i.getResponse().get(1)).getCampaignId());
+
+        i = new QueryCommand(sq, 1, null).execute();
+        Assert.assertEquals(1, i.getResponse().size());
+        Assert.assertEquals("2", ((AdUnitResponse) i.getResponse().get(0)).getAd());
+        deleteAdUnitsByIds("1", "2", "3");
+    }
+
+    @Test
+    public void testDominantCampaignDoesNotHideOthers() throws Exception {
+        List<Map> maps = new ArrayList<>();
+        String[] ids = new String[10];
+        for (int i = 0; i < 9; i++) {
+            ids[i] = Integer.toString(i + 1);
+            Map m = createAdUnitDataMap(ids[i], "1");
+            m.put("internal_cpv", 10);
+            maps.add(m);
+        }
+        ids[9] = "10";
+        Map m10 = createAdUnitDataMap("10", "2");
+        m10.put("internal_cpv", 1);
+        maps.add(m10);
+        loadAdUnitMaps(maps.toArray(new Map[maps.size()]));
+        SearchQueryRequest sq = new SearchQueryRequest();
+        sq.setTime("2014-11-21T01:00:00Z");
+        sq.setCategories(new ArrayList(Arrays.asList("cat1")));
+        sq.setDevice("dev1");
+        sq.setFormat(DeHelper.FORMAT.INFEED.toString());
+        sq.setLanguages(new ArrayList<String>(Arrays.asList("en")));
+        sq.setLocations(new ArrayList<String>(Arrays.asList("us")));
+
+        ItemsResponse i = new QueryCommand(sq, 2, null).execute();
+        System.out.println("Response ====>:" + i.toString());
+        Assert.assertEquals(2, i.getResponse().size());
+        Assert.assertEquals("1", ((AdUnitResponse) i.getResponse().get(0)).getCampaignId());
+        Assert.assertEquals("2", ((AdUnitResponse) i.getResponse().get(1)).getCampaignId());
+        deleteAdUnitsByIds(ids);
+    }
+
     @Test
     public void testScheduleTargeting() throws Exception {
         Map m1 = createAdUnitDataMap("1", "1");
@@ -756,4 +841,189 @@ public class ESAdUnitsIntegrationTest {
 
         deleteAdUnitsByIds("1");
     }
+
+    @Test
+    public void testSeenAdsAreDemoted() throws Exception {
+        Map m1 = createAdUnitDataMap("1", "1");
+        Map m2 = createAdUnitDataMap("2", "2");
+        Map m3 = createAdUnitDataMap("3", "3");
+        m1.put("video_id", "1");
+        m2.put("video_id", "2");
+        m3.put("video_id", "3");
+        m1.put("internal_cpv", 3);
+        m2.put("internal_cpv", 2);
+        m3.put("internal_cpv", 1);
+        loadAdUnitMaps(m1, m2, m3);
+
+        SearchQueryRequest sq = new SearchQueryRequest();
+        sq.setTime("2014-12-31T15:00:00-0800");
+        sq.setCategories(new ArrayList(Arrays.asList("cat1")));
+        sq.setDevice("dev1");
+        sq.setFormat(DeHelper.FORMAT.INFEED.toString());
+        sq.setLanguages(new ArrayList<String>(Arrays.asList("en")));
+        sq.setLocations(new ArrayList<String>(Arrays.asList("us")));
+        Map<String, Integer> m = new HashMap<>();
+        m.put("1", 11);
+        m.put("2", 11);
+        sq.setImpressionHistory(m);
+
+        ItemsResponse es = new QueryCommand(sq, 3, null).execute();
+        System.out.println("Response ====>:" + es.toString());
+        Assert.assertEquals(3, es.getResponse().size());
+        Assert.assertEquals("3", ((AdUnitResponse) es.getResponse().get(0)).getCampaignId());
+        Assert.assertEquals("1", ((AdUnitResponse) es.getResponse().get(1)).getCampaignId());
+        Assert.assertEquals("2", ((AdUnitResponse) es.getResponse().get(2)).getCampaignId());
+        ConfigurationManager.getConfigInstance().setProperty("adquery.inmemory.enabled", true);
+        try {
+            ItemsResponse inMemory = new QueryCommand(sq, 3, null).execute();
+            Assert.assertEquals(es.getResponse(), inMemory.getResponse());
+        } finally {
+            ConfigurationManager.getConfigInstance().setProperty("adquery.inmemory.enabled", false);
+        }
+        deleteAdUnitsByIds("1", "2", "3");
+    }
+
+    @Test
+    public void testEngagementEventsFlush() throws Exception {
+        Map m1 = createAdUnitDataMap("1", "1");
+        m1.put("views", 150);
+        m1.put("goal_views", 200);
+        loadAdUnitMaps(m1);
+
+        EngagementEvent event = new EngagementEvent();
+        event.setType("promoted");
+        event.setId("1");
+        event.setClicks(9);
+        event.setViews(30);
+        event.setImpressions(100);
+        DEProcessor.recordEngagement(Arrays.asList(event, event));
+        EngagementCounters.flush();
+
+        AdUnit unit = DEProcessor.getAdUnitById("1");
+        Assert.assertEquals(119, unit.getClicks().intValue());
+        Assert.assertEquals(210, unit.getViews().intValue());
+        Assert.assertEquals(1200, unit.getImpressions().intValue());
+        Assert.assertEquals(DeHelper.ctrScore(119, 1200), unit.getCtrScore());
+        Assert.assertTrue(unit.getGoalReached());
+
+        // applied deltas are not flushed again, the missing ad unit is not retried
+        EngagementEvent missing = new EngagementEvent();
+        missing.setType("promoted");
+        missing.setId("missing");
+        missing.setClicks(1);
+        DEProcessor.recordEngagement(Arrays.asList(event, missing));
+        EngagementCounters.flush();
+        EngagementCounters.flush();
+        unit = DEProcessor.getAdUnitById("1");
+        Assert.assertEquals(128, unit.getClicks().intValue());
+        Assert.assertEquals(1300, unit.getImpressions().intValue());
+        deleteAdUnitsByIds("1");
+    }
+
+    @Test(expected = DeException.class)
+    public void testNegativeEngagementRejected() throws Exception {
+        EngagementEvent event = new EngagementEvent();
+        event.setType("promoted");
+        event.setId("1");
+        event.setViews(-1);
+        DEProcessor.recordEngagement(Arrays.asList(event));
+    }
+
+    @Test
+    public void testInMemoryIndexMatchesES() throws Exception {
+        Map m1 = createAdUnitDataMap("1", "1");
+        Map m2 = createAdUnitDataMap("2", "2");
+        Map m3 = createAdUnitDataMap("3", "3");
+        Map m4 = createAdUnitDataMap("4", "4");
+        Map m5 = createAdUnitDataMap("5", "5");
+        Map m6 = createAdUnitDataMap("6", "2");
+
+        m1.put("internal_cpv", 20);
+        m2.put("clicks", 1500);
+        m2.put("impressions", 20000);
+        m2.put("views", 600);
+        m3.put("schedules", new ArrayList<Integer>(Arrays.asList(0, 0, 0, 0, 0, 0, 0)));
+        m4.put("paused", true);
+        m5.put("goal_views", 10);
+        m5.put("views", 10);
+        m6.put("internal_cpv", 30);
+        loadAdUnitMaps(m1, m2, m3, m4, m5, m6);
+
+        SearchQueryRequest sq = new SearchQueryRequest();
+        sq.setTime("2014-12-31T15:00:00-0800");
+        sq.setCategories(new ArrayList(Arrays.asList("cat1")));
+        sq.setDevice("dev1");
+        sq.setFormat(DeHelper.FORMAT.INFEED.toString());
+        sq.setLanguages(new ArrayList<String>(Arrays.asList("en")));
+        sq.setLocations(new ArrayList<String>(Arrays.asList("us")));
+
+        ItemsResponse es = new QueryCommand(sq, 5, null).execute();
+        ConfigurationManager.getConfigInstance().setProperty("adquery.inmemory.enabled", true);
+        try {
+            ItemsResponse inMemory = new QueryCommand(sq, 5, null).execute();
+            System.out.println("Response ====>:" + inMemory.toString());
+            Assert.assertEquals(2, inMemory.getResponse().size());
+            Assert.assertEquals(es.getResponse(), inMemory.getResponse());
+            AdUnitResponse r1 = (AdUnitResponse) inMemory.getResponse().get(0);
+            Assert.assertEquals("6", r1.getAd());
+
+            deleteAdUnitsByIds("6");
+            inMemory = new QueryCommand(sq, 5, null).execute();
+            r1 = (AdUnitResponse) inMemory.getResponse().get(0);
+            Assert.assertEquals("1", r1.getAd());
+        } finally {
+            ConfigurationManager.getConfigInstance().setProperty("adquery.inmemory.enabled", false);
+        }
+        deleteAdUnitsByIds("1", "2", "3", "4", "5");
+    }
+
+    @Test
+    public void testRankingModesMatch() throws Exception {
+        Map m1 = createAdUnitDataMap("1", "1");
+        Map m2 = createAdUnitDataMap("2", "2");
+        Map m3 = createAdUnitDataMap("3", "3");
+        Map m4 = createAdUnitDataMap("4", "4");
+
+        m1.put("clicks", 140);
+        m1.put("impressions", 10000);
+        m2.put("clicks", 1500);
+        m2.put("impressions", 20000);
+        m2.put("views", 600);
+        m3.put("clicks", 0);
+        m4.put("views", 5);
+        m4.put("goal_views", 10);
+        loadAdUnitMaps(m1, m2, m3, m4);
+
+        SearchQueryRequest sq = new SearchQueryRequest();
+        sq.setTime("2014-12-31T15:00:00-0800");
+        sq.setCategories(new ArrayList(Arrays.asList("cat1")));
+        sq.setDevice("dev1");
+        sq.setFormat(DeHelper.FORMAT.INFEED.toString());
+        sq.setLanguages(new ArrayList<String>(Arrays.asList("en")));
+        sq.setLocations(new ArrayList<String>(Arrays.asList("us")));
+
+        ItemsResponse nativeScored = new QueryCommand(sq, 4, null).execute();
+        try {
+            ConfigurationManager.getConfigInstance().setProperty("ranking.mode", DeHelper.RANKING_FIELDS);
+            ItemsResponse derived = new QueryCommand(sq, 4, null).execute();
+            ConfigurationManager.getConfigInstance().setProperty("ranking.mode", DeHelper.RANKING_SCRIPTS);
+            ItemsResponse scripted = new QueryCommand(sq, 4, null).execute();
+            System.out.println("Response ====>:" + scripted.toString());
+            Assert.assertEquals(4, scripted.getResponse().size());
+            Assert.assertEquals(scripted.getResponse(), derived.getResponse());
+            Assert.assertEquals(scripted.getResponse(), nativeScored.getResponse());
+        } finally {
+            ConfigurationManager.getConfigInstance().setProperty("ranking.mode", DeHelper.RANKING_NATIVE);
+        }
+
+        //partial update, goal_reached is derived from the merged document
+        AdUnit unit = new AdUnit();
+        unit.setId("4");
+        unit.setViews(10);
+        new AdUpdateCommand(unit).execute();
+        Thread.sleep(2000);
+        ItemsResponse i = new QueryCommand(sq, 4, null).execute();
+        Assert.assertEquals(3, i.getResponse().size());
+        deleteAdUnitsByIds("1", "2", "3", "4");
+    }
 }
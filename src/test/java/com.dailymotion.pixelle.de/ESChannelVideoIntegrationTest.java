@@ -2,16 +2,20 @@ package com.dailymotion.pixelle.de;
 
 import com.dailymotion.pixelle.de.model.ItemsResponse;
 import com.dailymotion.pixelle.de.model.SearchQueryRequest;
+import com.dailymotion.pixelle.de.model.Video;
+import com.dailymotion.pixelle.de.model.VideoGroupKey;
 import com.dailymotion.pixelle.de.model.VideoResponse;
 import com.dailymotion.pixelle.de.processor.AdUnitProcessor;
 import com.dailymotion.pixelle.de.processor.ChannelProcessor;
 import com.dailymotion.pixelle.de.processor.DEProcessor;
 import com.dailymotion.pixelle.de.processor.VideoProcessor;
+import com.dailymotion.pixelle.de.processor.hystrix.DMApiChannelBatchCommand;
 import com.dailymotion.pixelle.de.processor.hystrix.QueryCommand;
 import com.dailymotion.pixelle.de.providers.ESTestNodeClientProvider;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.inject.AbstractModule;
 import com.google.inject.Injector;
+import com.netflix.config.ConfigurationManager;
 import com.netflix.hystrix.exception.HystrixBadRequestException;
 import org.elasticsearch.client.Client;
 import org.junit.AfterClass;
@@ -20,6 +24,7 @@ import org.junit.Test;
 import org.slf4j.Logger;
 
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 import static com.dailymotion.pixelle.de.ESAdUnitsIntegrationTest.createAdUnitDataMap;
@@ -33,9 +38,11 @@ import static com.dailymotion.pixelle.de.processor.DeHelper.promotedIndex;
 import static com.google.inject.Guice.createInjector;
 import static com.netflix.config.ConfigurationManager.loadCascadedPropertiesFromResources;
 import static java.lang.System.out;
+import static java.lang.Thread.sleep;
 import static java.util.Arrays.asList;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.slf4j.LoggerFactory.getLogger;
 
@@ -146,6 +153,90 @@ public class ESChannelVideoIntegrationTest {
         deleteAdUnitsByIds("1");
     }
 
+    @Test
+    public void testStoredGroupVideos() throws Exception {
+        VideoGroupKey key = new VideoGroupKey("storedchannel", null, "recent");
+        ConfigurationManager.getConfigInstance().setProperty("pixelle.channel.es.store", true);
+        try {
+            assertNull(ChannelProcessor.getStoredVideos(key));
+            ChannelProcessor.insertGroupVideosInBulk(key, asList(video("3"), video("1"), video("2")));
+            sleep(2000);
+            assertEquals(asList("3", "1", "2"), videoIds(ChannelProcessor.getStoredVideos(key)));
+
+            // a new batch replaces the previous one
+            ChannelProcessor.insertGroupVideosInBulk(key, asList(video("2"), video("4")));
+            sleep(2000);
+            assertEquals(asList("2", "4"), videoIds(ChannelProcessor.getStoredVideos(key)));
+            assertNull(ChannelProcessor.getStoredVideos(new VideoGroupKey("storedchannel", null, "visited")));
+        } finally {
+            ConfigurationManager.getConfigInstance().setProperty("pixelle.channel.es.store", false);
+        }
+    }
+
+    @Test
+    public void testMergeChannelVideos() throws Exception {
+        List<VideoResponse> a = asList(video("a1", 50L), video("a2", 30L), video("a3", 10L));
+        List<VideoResponse> b = asList(video("b1", 40L), video("b2", 30L));
+
+        assertEquals(asList("a1", "b1", "a2", "b2", "a3"),
+                videoIds(ChannelProcessor.mergeChannelVideos(asList(a, b), "recent", 10)));
+        assertEquals(asList("a1", "b1", "a2"), videoIds(ChannelProcessor.mergeChannelVideos(asList(a, b), "recent", 3)));
+        assertEquals(asList("b1", "a1", "b2", "a2", "a3"),
+                videoIds(ChannelProcessor.mergeChannelVideos(asList(b, a), "visited", 10)));
+    }
+
+    @Test
+    public void testMergeCreatedVideos() throws Exception {
+        List<VideoResponse> cached = asList(video("v3", 30L), video("v2", 20L), video("v1", 10L));
+        List<VideoResponse> created = asList(video("v5", 50L), video("v3", 40L));
+
+        assertEquals(asList("v5", "v3", "v2", "v1"), videoIds(ChannelProcessor.mergeCreatedVideos(created, cached)));
+        assertEquals(asList("v3", "v2", "v1"),
+                videoIds(ChannelProcessor.mergeCreatedVideos(new ArrayList<>(), cached)));
+    }
+
+    @Test
+    public void testDmApiBatchSplitByOwner() throws Exception {
+        Video v1 = new Video();
+        v1.setOwnerUsername("ChannelOne");
+        v1.setOwnerId("x1");
+        Video v2 = new Video();
+        v2.setOwnerUsername("channeltwo");
+        v2.setOwnerId("channeltwo");
+        Video v3 = new Video();
+        v3.setOwnerUsername("channelone");
+        v3.setOwnerId("X1");
+
+        Map<String, List<Video>> byOwner = DMApiChannelBatchCommand.byOwner(asList(v1, v2, v3));
+        assertEquals(asList(v1, v3), byOwner.get("channelone"));
+        assertEquals(asList(v1, v3), byOwner.get("x1"));
+        // an owner whose id is its username is listed once
+        assertEquals(asList(v2), byOwner.get("channeltwo"));
+        assertEquals(3, byOwner.size());
+    }
+
+    private static VideoResponse video(String id, Long createdTime) {
+        VideoResponse video = video(id);
+        video.setCreatedTime(createdTime);
+        return video;
+    }
+
+    public static VideoResponse video(String id) {
+        VideoResponse video = new VideoResponse();
+        video.setVideoId(id);
+        video.setChannel("storedchannel");
+        video.setTitle("title " + id);
+        return video;
+    }
+
+    private static List<String> videoIds(List<VideoResponse> videos) {
+        List<String> ids = new ArrayList<>();
+        for (VideoResponse video : videos) {
+            ids.add(video.getVideoId());
+        }
+        return ids;
+    }
+
     @Test(expected = HystrixBadRequestException.class)
     public void testTooManyChannels() throws Exception {
         SearchQueryRequest sq = new SearchQueryRequest();
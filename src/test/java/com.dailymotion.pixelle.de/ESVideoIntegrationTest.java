@@ -1,20 +1,25 @@
 package com.dailymotion.pixelle.de;
 
+import com.dailymotion.pixelle.common.services.CacheService;
 import com.dailymotion.pixelle.de.model.ItemsResponse;
+import com.dailymotion.pixelle.de.model.OrganicVideosKey;
 import com.dailymotion.pixelle.de.model.SearchQueryRequest;
 import com.dailymotion.pixelle.de.model.Video;
 import com.dailymotion.pixelle.de.model.VideoResponse;
 import com.dailymotion.pixelle.de.processor.AdUnitProcessor;
 import com.dailymotion.pixelle.de.processor.DEProcessor;
 import com.dailymotion.pixelle.de.processor.DeException;
+import com.dailymotion.pixelle.de.processor.VideoFallbackPool;
 import com.dailymotion.pixelle.de.processor.VideoProcessor;
 import com.dailymotion.pixelle.de.processor.hystrix.QueryCommand;
 import com.dailymotion.pixelle.de.processor.hystrix.VideoBulkInsertCommand;
 import com.dailymotion.pixelle.de.providers.ESTestNodeClientProvider;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.cache.LoadingCache;
 import com.google.inject.AbstractModule;
 import com.google.inject.Injector;
+import com.netflix.config.ConfigurationManager;
 import org.elasticsearch.client.Client;
 import org.junit.AfterClass;
 import org.junit.Assert;
@@ -33,9 +38,11 @@ import static com.dailymotion.pixelle.de.ESAdUnitsIntegrationTest.loadAdUnitMaps
 import static com.dailymotion.pixelle.de.processor.DEProcessor.deleteById;
 import static com.dailymotion.pixelle.de.processor.DEProcessor.deleteIndex;
 import static com.dailymotion.pixelle.de.processor.DeHelper.FORMAT.INWIDGET;
+import static com.dailymotion.pixelle.de.processor.DeHelper.currentUTCTime;
 import static com.dailymotion.pixelle.de.processor.DeHelper.currentUTCTimeString;
 import static com.dailymotion.pixelle.de.processor.DeHelper.organicIndex;
 import static com.dailymotion.pixelle.de.processor.DeHelper.promotedIndex;
+import static com.dailymotion.pixelle.de.processor.DeHelper.timeToISO8601String;
 import static com.dailymotion.pixelle.de.processor.DeHelper.videosType;
 import static com.google.inject.Guice.createInjector;
 import static com.netflix.config.ConfigurationManager.loadCascadedPropertiesFromResources;
@@ -497,4 +504,93 @@ public class ESVideoIntegrationTest {
         assertTrue(i.getResponse().size() == 2);
         deleteVideosByIds("1", "2", "3");
     }
+
+    @Test
+    public void testFallbackPoolMatchesSearch() throws Exception {
+        Map m1 = createVideoDataMap("1");
+        Map m2 = createVideoDataMap("2");
+        Map m3 = createVideoDataMap("3");
+        Map m4 = createVideoDataMap("4");
+        Map m5 = createVideoDataMap("5");
+        m1.put("languages", new ArrayList<String>(asList("en")));
+        m2.put("languages", new ArrayList<String>(asList("en")));
+        m3.put("languages", new ArrayList<String>(asList("fr")));
+        m4.put("languages", new ArrayList<String>(asList("fr", "en")));
+        m5.put("languages", new ArrayList<String>(asList("hi")));
+        m1.put("publication_date", timeToISO8601String(currentUTCTime().minusDays(30)));
+        m2.put("publication_date", timeToISO8601String(currentUTCTime().minusDays(60)));
+        m3.put("publication_date", timeToISO8601String(currentUTCTime().minusDays(10)));
+        m4.put("publication_date", timeToISO8601String(currentUTCTime().minusDays(90)));
+        loadVideoMaps(m1, m2, m3, m4, m5);
+
+        ItemsResponse es = new QueryCommand(frenchQuery(), 10, "organic").execute();
+        out.println("Response ====>:" + es.toString());
+        assertEquals(4, es.getResponse().size());
+        assertEquals("3", ((VideoResponse) es.getResponse().get(0)).getVideoId());
+        assertEquals("4", ((VideoResponse) es.getResponse().get(1)).getVideoId());
+        assertEquals("1", ((VideoResponse) es.getResponse().get(2)).getVideoId());
+        assertEquals("2", ((VideoResponse) es.getResponse().get(3)).getVideoId());
+
+        ConfigurationManager.getConfigInstance().setProperty("videoquery.fallbackpool.enabled", true);
+        try {
+            VideoFallbackPool.rebuild();
+            ItemsResponse pooled = new QueryCommand(frenchQuery(), 10, "organic").execute();
+            assertEquals(es.getResponse(), pooled.getResponse());
+        } finally {
+            ConfigurationManager.getConfigInstance().setProperty("videoquery.fallbackpool.enabled", false);
+            VideoFallbackPool.clear();
+        }
+        deleteVideosByIds("1", "2", "3", "4", "5");
+    }
+
+    @Test
+    public void testOrganicVideosKeyIsCanonical() throws Exception {
+        SearchQueryRequest sq1 = new SearchQueryRequest();
+        sq1.setCategories(new ArrayList<String>(asList("Cat1", "cat2", "all")));
+        sq1.setLanguages(new ArrayList<String>(asList("fr", "EN")));
+        Map<String, Float> keywords = new HashMap<>();
+        keywords.put("Tennis", 0.5f);
+        sq1.setKeywords(keywords);
+        SearchQueryRequest sq2 = new SearchQueryRequest();
+        sq2.setCategories(new ArrayList<String>(asList("cat2", "cat1", "cat2")));
+        sq2.setLanguages(new ArrayList<String>(asList("en", "all", "fr")));
+        sq2.setKeywords(new HashMap<>(keywords));
+        sq2.setExcludedVideoIds(asList("1"));
+
+        OrganicVideosKey key = OrganicVideosKey.of(sq1);
+        assertEquals(key, OrganicVideosKey.of(sq2));
+        assertEquals(key.hashCode(), OrganicVideosKey.of(sq2).hashCode());
+        assertEquals(asList("all", "cat1", "cat2"), key.getCategories());
+        assertEquals(asList("all", "en", "fr"), key.getLanguages());
+        sq2.setKeywords(null);
+        assertTrue(!key.equals(OrganicVideosKey.of(sq2)));
+    }
+
+    @Test
+    public void testOrganicVideosCacheResizedAtRuntime() throws Exception {
+        OrganicVideosKey key = OrganicVideosKey.of(frenchQuery());
+        VideoResponse video = new VideoResponse();
+        video.setVideoId("resized");
+        CacheService.getOrganicVideosCache().put(key, asList(video));
+        LoadingCache<OrganicVideosKey, List<VideoResponse>> before = CacheService.getOrganicVideosCache();
+        try {
+            ConfigurationManager.getConfigInstance().setProperty("pixelle.organic.cache.max.bytes", 16L << 20);
+            assertTrue(before != CacheService.getOrganicVideosCache());
+            assertEquals("resized", CacheService.getOrganicVideosCache().getIfPresent(key).get(0).getVideoId());
+        } finally {
+            ConfigurationManager.getConfigInstance().clearProperty("pixelle.organic.cache.max.bytes");
+            CacheService.getOrganicVideosCache().invalidate(key);
+        }
+    }
+
+    private static SearchQueryRequest frenchQuery() {
+        SearchQueryRequest sq = new SearchQueryRequest();
+        sq.setTime("2014-12-31T15:00:00-0800");
+        sq.setCategories(new ArrayList(asList("cat3")));
+        sq.setDevice("dev1");
+        sq.setFormat(INWIDGET.toString());
+        sq.setLanguages(new ArrayList<String>(asList("fr")));
+        sq.setLocations(new ArrayList<String>(asList("fr")));
+        return sq;
+    }
 }
@@ -0,0 +1,105 @@
+package com.dailymotion.pixelle.common.services;
+
+import com.dailymotion.pixelle.de.model.VideoGroupKey;
+import com.dailymotion.pixelle.de.model.VideoResponse;
+import com.dailymotion.pixelle.de.processor.AdUnitProcessor;
+import com.dailymotion.pixelle.de.processor.ChannelProcessor;
+import com.dailymotion.pixelle.de.processor.DEProcessor;
+import com.dailymotion.pixelle.de.processor.VideoProcessor;
+import com.dailymotion.pixelle.de.processor.hystrix.DMApiQueryCommand;
+import com.dailymotion.pixelle.de.providers.ESTestNodeClientProvider;
+import com.google.inject.AbstractModule;
+import com.netflix.hystrix.exception.HystrixRuntimeException;
+import org.elasticsearch.client.Client;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.List;
+
+import static com.dailymotion.pixelle.de.ESChannelVideoIntegrationTest.video;
+import static com.dailymotion.pixelle.de.processor.DEProcessor.deleteIndex;
+import static com.dailymotion.pixelle.de.processor.DeHelper.channelIndex;
+import static com.dailymotion.pixelle.de.processor.DeHelper.organicIndex;
+import static com.dailymotion.pixelle.de.processor.DeHelper.promotedIndex;
+import static com.google.inject.Guice.createInjector;
+import static com.netflix.config.ConfigurationManager.getConfigInstance;
+import static com.netflix.config.ConfigurationManager.loadCascadedPropertiesFromResources;
+import static com.netflix.hystrix.exception.HystrixRuntimeException.FailureType.COMMAND_EXCEPTION;
+import static java.lang.Thread.sleep;
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class CacheServiceTest {
+    private static final HystrixRuntimeException dmApiDown =
+            new HystrixRuntimeException(COMMAND_EXCEPTION, DMApiQueryCommand.class, "DM API down", null, null);
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        loadCascadedPropertiesFromResources("application");
+        createInjector(new AbstractModule() {
+
+            @Override
+            protected void configure() {
+                bind(Client.class).toProvider(ESTestNodeClientProvider.class).asEagerSingleton();
+                bind(AdUnitProcessor.class).asEagerSingleton();
+                bind(VideoProcessor.class).asEagerSingleton();
+                bind(ChannelProcessor.class).asEagerSingleton();
+                bind(DEProcessor.class).asEagerSingleton();
+            }
+        });
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        deleteIndex(organicIndex.get());
+        deleteIndex(promotedIndex.get());
+        deleteIndex(channelIndex.get());
+    }
+
+    @Test
+    public void testRefreshFailedServesStoredBatch() throws Exception {
+        VideoGroupKey key = new VideoGroupKey("stalestored", null, "recent");
+        List<VideoResponse> oldValue = singletonList(video("old"));
+        getConfigInstance().setProperty("pixelle.channel.es.store", true);
+        try {
+            ChannelProcessor.insertGroupVideosInBulk(key, asList(video("v1"), video("v2")));
+            sleep(2000);
+            // the batch stored by another node is fresher than the old value
+            List<VideoResponse> videos = CacheService.refreshFailed(key, oldValue, dmApiDown);
+            assertEquals("v1", videos.get(0).getVideoId());
+            assertEquals("v2", videos.get(1).getVideoId());
+        } finally {
+            getConfigInstance().setProperty("pixelle.channel.es.store", false);
+        }
+    }
+
+    @Test
+    public void testRefreshFailedServesOldValue() throws Exception {
+        VideoGroupKey key = new VideoGroupKey("staleold", null, "recent");
+        List<VideoResponse> oldValue = singletonList(video("old"));
+        assertSame(oldValue, CacheService.refreshFailed(key, oldValue, dmApiDown));
+    }
+
+    @Test
+    public void testRefreshFailedTooStale() throws Exception {
+        VideoGroupKey key = new VideoGroupKey("staleexpired", null, "recent");
+        List<VideoResponse> oldValue = singletonList(video("old"));
+        getConfigInstance().setProperty("pixelle.channel.stale.max.minutes", 0);
+        try {
+            CacheService.refreshFailed(key, oldValue, dmApiDown);
+            sleep(10);
+            try {
+                CacheService.refreshFailed(key, oldValue, dmApiDown);
+                fail("the old value is too stale to be served");
+            } catch (HystrixRuntimeException e) {
+                assertSame(dmApiDown, e);
+            }
+        } finally {
+            getConfigInstance().setProperty("pixelle.channel.stale.max.minutes", 120);
+        }
+    }
+}
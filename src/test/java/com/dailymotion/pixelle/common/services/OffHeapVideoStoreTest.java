@@ -0,0 +1,69 @@
+package com.dailymotion.pixelle.common.services;
+
+import com.dailymotion.pixelle.de.model.VideoResponse;
+import org.junit.Test;
+
+import java.util.List;
+
+import static com.dailymotion.pixelle.common.services.OffHeapVideoStore.SEGMENTS;
+import static com.dailymotion.pixelle.de.ESChannelVideoIntegrationTest.video;
+import static java.lang.Thread.sleep;
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class OffHeapVideoStoreTest {
+
+    @Test
+    public void testEncodeDecode() throws Exception {
+        VideoResponse full = video("x1");
+        full.setChannel("channel");
+        full.setChannelName("channel name");
+        full.setChannelId("xc1");
+        full.setChannelTier("premium");
+        full.setDescription("déscription");
+        full.setDuration(123);
+        full.setResizableThumbnailUrl("http://thumbnail");
+        full.setCreatedTime(1444000000L);
+        // unset fields and the default content type
+        VideoResponse sparse = video("x2");
+        sparse.setContentType("organic");
+        List<VideoResponse> videos = asList(full, sparse);
+
+        assertEquals(videos, OffHeapVideoStore.decode(OffHeapVideoStore.encode(videos).toBytes()));
+    }
+
+    @Test
+    public void testRecycledSegmentMisses() throws Exception {
+        int length = OffHeapVideoStore.encode(singletonList(video(key(0)))).length();
+        // one entry per segment
+        OffHeapVideoStore<String> store = new OffHeapVideoStore<>("TestRecycle", SEGMENTS * (length + length / 2),
+                60000);
+        for (int i = 0; i < SEGMENTS; i++) {
+            store.put(key(i), singletonList(video(key(i))));
+        }
+        assertEquals(key(0), store.get(key(0)).get(0).getVideoId());
+
+        // wraps around to the first segment, which is rewritten
+        store.put(key(SEGMENTS), singletonList(video(key(SEGMENTS))));
+        assertNull(store.get(key(0)));
+        assertNotNull(store.get(key(1)));
+        assertEquals(key(SEGMENTS), store.get(key(SEGMENTS)).get(0).getVideoId());
+        assertEquals(SEGMENTS * length, store.usedBytes());
+    }
+
+    @Test
+    public void testEntriesExpire() throws Exception {
+        OffHeapVideoStore<String> store = new OffHeapVideoStore<>("TestExpire", 16 * 1024, 200);
+        store.put("k", singletonList(video("k")));
+        assertNotNull(store.get("k"));
+        sleep(400);
+        assertNull(store.get("k"));
+    }
+
+    private static String key(int i) {
+        return String.format("k%02d", i);
+    }
+}
@@ -0,0 +1,58 @@
+package com.dailymotion.pixelle.common.services;
+
+import org.junit.Test;
+
+import static java.lang.Thread.sleep;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StaleIfErrorTest {
+
+    @Test
+    public void testBackoffDoubles() throws Exception {
+        StaleIfError<String> stale = new StaleIfError<>("TestBackoff", () -> 60000, () -> 300, () -> 1000);
+        assertFalse(stale.backingOff("k"));
+
+        assertTrue(stale.failed("k"));
+        assertTrue(stale.backingOff("k"));
+        sleep(450);
+        assertFalse(stale.backingOff("k"));
+
+        // second failure, 600ms
+        assertTrue(stale.failed("k"));
+        sleep(450);
+        assertTrue(stale.backingOff("k"));
+        sleep(300);
+        assertFalse(stale.backingOff("k"));
+
+        // a good value resets the backoff
+        stale.forget("k");
+        assertFalse(stale.backingOff("k"));
+    }
+
+    @Test
+    public void testBackoffCapped() throws Exception {
+        StaleIfError<String> stale = new StaleIfError<>("TestBackoffMax", () -> 60000, () -> 100, () -> 300);
+        for (int i = 0; i < 40; i++) {
+            stale.failed("k");
+        }
+        assertTrue(stale.backingOff("k"));
+        sleep(450);
+        assertFalse(stale.backingOff("k"));
+    }
+
+    @Test
+    public void testStaleExpires() throws Exception {
+        StaleIfError<String> stale = new StaleIfError<>("TestExpire", () -> 300, () -> 10, () -> 10);
+        assertTrue(stale.failed("k"));
+        assertFalse(stale.expire("k"));
+        sleep(450);
+
+        // staleness counted from the first failure
+        assertFalse(stale.failed("k"));
+        assertTrue(stale.expire("k"));
+        // forgotten, the next failure starts over
+        assertFalse(stale.expire("k"));
+        assertTrue(stale.failed("k"));
+    }
+}